@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
 import java.util.Iterator;
@@ -40,6 +41,9 @@ public class HDBSCANStar {
 
 	private static final int FILE_BUFFER_SIZE = 32678;
 
+	//constructMST() uses a KdTree up to this many attributes and a VantagePointTree above:
+	private static final int KD_TREE_MST_MAX_ATTRIBUTES = 2;
+
 	// ------------------------------ CONSTRUCTORS ------------------------------
 
 	// ------------------------------ PUBLIC METHODS ------------------------------
@@ -144,23 +148,66 @@ public class HDBSCANStar {
 
 
 	/**
-	 * Calculates the core distances for each point in the data set, given some value for k.
+	 * Calculates the core distances for each point in the data set, given some value for k.  For
+	 * distances a KdTree or a VantagePointTree supports, the neighbors are found with that tree on
+	 * all processors; otherwise every pair of points is compared.
 	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
 	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
 	 * @param distanceFunction A DistanceCalculator to compute distances between points
 	 * @return An array of core distances
 	 */
 	public static double[] calculateCoreDistances(double[][] dataSet, int k, DistanceCalculator distanceFunction) {
-		int numNeighbors = k -1;
-		double[] coreDistances = new double[dataSet.length];
+		return calculateCoreDistances(dataSet, k, distanceFunction, Double.POSITIVE_INFINITY);
+	}
 
-		if (k == 1) {
-			for (int point = 0; point < dataSet.length; point++) {
-				coreDistances[point] = 0;
-			}
-			return coreDistances;
+
+	/**
+	 * Calculates the core distances for each point in the data set like 
+	 * calculateCoreDistances(double[][], int, DistanceCalculator), but a point with fewer than k-1 
+	 * other points within maxEpsilon gets an infinite core distance.  The kd-tree and vantage-point 
+	 * tree searches never look farther than maxEpsilon from a point, so sparse data with a small 
+	 * maxEpsilon is much cheaper to search.
+	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
+	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
+	 * @param distanceFunction A DistanceCalculator to compute distances between points
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances
+	 */
+	public static double[] calculateCoreDistances(double[][] dataSet, int k, DistanceCalculator distanceFunction,
+			double maxEpsilon) {
+		return calculateCoreDistances(dataSet, new int[] {k}, distanceFunction, maxEpsilon)[0];
+	}
+
+
+	/**
+	 * Calculates the core distances of each point for several values of minPoints at once.  The 
+	 * neighbors of each point are found a single time, for the largest value, and the core distance 
+	 * for every value is read from the same sorted list of neighbor distances, so a sweep over 
+	 * minPoints costs about one search.  Each array of core distances can be passed on to 
+	 * constructMST() as it would be for a single value.
+	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
+	 * @param minPoints The values of minPoints (k) to calculate core distances for, in any order
+	 * @param distanceFunction A DistanceCalculator to compute distances between points
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances for each value of minPoints, in the order given
+	 */
+	public static double[][] calculateCoreDistances(double[][] dataSet, int[] minPoints, 
+			DistanceCalculator distanceFunction, double maxEpsilon) {
+		int numNeighbors = 0;
+		for (int k : minPoints) {
+			numNeighbors = Math.max(numNeighbors, k-1);
 		}
 
+		if (numNeighbors > 0 && KdTree.supports(distanceFunction))
+			return new KdTree(dataSet, distanceFunction).calculateCoreDistances(minPoints, maxEpsilon);
+		if (numNeighbors > 0 && VantagePointTree.supports(distanceFunction))
+			return new VantagePointTree(dataSet, distanceFunction).calculateCoreDistances(minPoints, maxEpsilon);
+
+		double[][] coreDistances = new double[minPoints.length][dataSet.length];
+
+		if (numNeighbors <= 0)
+			return coreDistances;
+
 		for (int point = 0; point < dataSet.length; point++) {
 			double[] kNNDistances = new double[numNeighbors];	//Sorted nearest distances found so far
 			for (int i = 0; i < numNeighbors; i++) {
@@ -186,7 +233,13 @@ public class HDBSCANStar {
 					kNNDistances[neighborIndex] = distance;
 				}
 			}
-			coreDistances[point] = kNNDistances[numNeighbors-1];
+			for (int i = 0; i < minPoints.length; i++) {
+				int kNeighbors = minPoints[i]-1;
+				double coreDistance = kNeighbors > 0 ? kNNDistances[kNeighbors-1] : 0;
+				if (coreDistance > maxEpsilon)
+					coreDistance = Double.POSITIVE_INFINITY;
+				coreDistances[i][point] = coreDistance;
+			}
 		}
 
 		return coreDistances;
@@ -195,7 +248,10 @@ public class HDBSCANStar {
 
 	/**
 	 * Constructs the minimum spanning tree of mutual reachability distances for the data set, given
-	 * the core distances for each point.
+	 * the core distances for each point.  For distances a VantagePointTree supports, the tree is
+	 * built with Boruvka's algorithm over a vantage-point tree, or over a kd-tree with a dual-tree
+	 * search for data with at most KD_TREE_MST_MAX_ATTRIBUTES attributes; otherwise with Prim's
+	 * algorithm over all pairs of points.
 	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
 	 * @param coreDistances An array of core distances for each data point
 	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
@@ -204,6 +260,31 @@ public class HDBSCANStar {
 	 */
 	public static UndirectedGraph constructMST(double[][] dataSet, double[] coreDistances, 
 			boolean selfEdges, DistanceCalculator distanceFunction) {
+		return constructMST(dataSet, coreDistances, selfEdges, distanceFunction, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * Constructs the minimum spanning forest of mutual reachability distances up to maxEpsilon. 
+	 * Edges longer than maxEpsilon are left out, so when the data set does not stay connected 
+	 * through shorter edges the result has fewer than (n-1) edges between distinct points, one tree 
+	 * for each component.  computeHierarchyAndClusterTree() treats the components as split apart 
+	 * at an infinite level.
+	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
+	 * @param coreDistances An array of core distances for each data point
+	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
+	 * @param distanceFunction A DistanceCalculator to compute distances between points
+	 * @param maxEpsilon The largest mutual reachability distance of an edge
+	 * @return An MST, or a forest, for the data set using the mutual reachability distances
+	 */
+	public static UndirectedGraph constructMST(double[][] dataSet, double[] coreDistances, 
+			boolean selfEdges, DistanceCalculator distanceFunction, double maxEpsilon) {
+
+		//The kd-tree's dual-tree search prunes better in few dimensions, the vantage-point tree beyond:
+		if (dataSet.length > 0 && dataSet[0].length <= KD_TREE_MST_MAX_ATTRIBUTES && KdTree.supports(distanceFunction))
+			return new KdTree(dataSet, distanceFunction).constructMST(coreDistances, selfEdges, maxEpsilon);
+		if (VantagePointTree.supports(distanceFunction))
+			return new VantagePointTree(dataSet, distanceFunction).constructMST(coreDistances, selfEdges, maxEpsilon);
 
 		int selfEdgeCapacity = 0;
 		if (selfEdges)
@@ -245,7 +326,7 @@ public class HDBSCANStar {
 				if (coreDistances[neighbor] > mutualReachabiltiyDistance)
 					mutualReachabiltiyDistance = coreDistances[neighbor];
 
-				if (mutualReachabiltiyDistance < nearestMRDDistances[neighbor]) {
+				if (mutualReachabiltiyDistance <= maxEpsilon && mutualReachabiltiyDistance < nearestMRDDistances[neighbor]) {
 					nearestMRDDistances[neighbor] = mutualReachabiltiyDistance;
 					nearestMRDNeighbors[neighbor] = currentPoint;
 				}
@@ -257,6 +338,10 @@ public class HDBSCANStar {
 				}
 			}
 
+			//If no point is within maxEpsilon of the tree, the closest one starts a new tree of the forest:
+			if (nearestMRDDistance > maxEpsilon)
+				nearestMRDNeighbors[nearestMRDPoint] = -1;
+
 			//Attach the closest point found in this iteration to the tree:
 			attachedPoints.set(nearestMRDPoint);
 			numAttachedPoints++;
@@ -280,6 +365,22 @@ public class HDBSCANStar {
 			}
 		}
 
+		//Leave out the points that started a new tree of the forest:
+		int numEdges = 0;
+		for (int i = 0; i < nearestMRDNeighbors.length; i++) {
+			if (nearestMRDNeighbors[i] < 0)
+				continue;
+			nearestMRDNeighbors[numEdges] = nearestMRDNeighbors[i];
+			otherVertexIndices[numEdges] = otherVertexIndices[i];
+			nearestMRDDistances[numEdges] = nearestMRDDistances[i];
+			numEdges++;
+		}
+		if (numEdges < nearestMRDNeighbors.length) {
+			nearestMRDNeighbors = Arrays.copyOf(nearestMRDNeighbors, numEdges);
+			otherVertexIndices = Arrays.copyOf(otherVertexIndices, numEdges);
+			nearestMRDDistances = Arrays.copyOf(nearestMRDDistances, numEdges);
+		}
+
 		return new UndirectedGraph(dataSet.length, nearestMRDNeighbors, otherVertexIndices, nearestMRDDistances);
 	}
 
@@ -288,7 +389,9 @@ public class HDBSCANStar {
 	 * Computes the hierarchy and cluster tree from the minimum spanning tree, writing both to file, 
 	 * and returns the cluster tree.  Additionally, the level at which each point becomes noise is
 	 * computed.  Note that the minimum spanning tree may also have self edges (meaning it is not
-	 * a true MST).
+	 * a true MST).  It may also be a minimum spanning forest, as constructMST() returns for a 
+	 * finite maxEpsilon; its components then split apart at an infinite level before any edge is 
+	 * removed.
 	 * @param mst A minimum spanning tree which has been sorted by edge weight in descending order
 	 * @param minClusterSize The minimum number of points which a cluster needs to be a valid cluster
 	 * @param compactHierarchy Indicates if hierarchy should include all levels or only levels at 
@@ -341,10 +444,27 @@ public class HDBSCANStar {
 		TreeSet<Integer> affectedClusterLabels = new TreeSet<Integer>();
 		TreeSet<Integer> affectedVertices = new TreeSet<Integer>();		
 
-		while(currentEdgeIndex >= 0) {
-			double currentEdgeWeight = mst.getEdgeWeightAtIndex(currentEdgeIndex);
+		//A forest has fewer edges between distinct vertices than a spanning tree:
+		int numTreeEdges = 0;
+		for (int i = 0; i < mst.getNumEdges(); i++) {
+			if (mst.getFirstVertexAtIndex(i) != mst.getSecondVertexAtIndex(i))
+				numTreeEdges++;
+		}
+		boolean splitForest = numTreeEdges < mst.getNumVertices()-1;
+
+		while(currentEdgeIndex >= 0 || splitForest) {
+			double currentEdgeWeight = splitForest ? Double.POSITIVE_INFINITY : mst.getEdgeWeightAtIndex(currentEdgeIndex);
 			ArrayList<Cluster> newClusters = new ArrayList<Cluster>();
 
+			//Examine the whole root cluster, whose components are not connected by any edge:
+			if (splitForest) {
+				for (int vertex = 0; vertex < mst.getNumVertices(); vertex++) {
+					affectedVertices.add(vertex);
+				}
+				affectedClusterLabels.add(1);
+				splitForest = false;
+			}
+
 			//Remove all edges tied with the current edge weight, and store relevant clusters and vertices:
 			while (currentEdgeIndex >= 0 && mst.getEdgeWeightAtIndex(currentEdgeIndex) == currentEdgeWeight){
 				int firstVertex = mst.getFirstVertexAtIndex(currentEdgeIndex);
@@ -732,7 +852,7 @@ public class HDBSCANStar {
 			double epsilon = pointNoiseLevels[i];
 			
 			double score = 0;
-			if (epsilon != 0)
+			if (epsilon != 0 && epsilon_max != epsilon)
 				score = 1-(epsilon_max/epsilon);
 			
 			outlierScores.add(new OutlierScore(score, coreDistances[i], i));
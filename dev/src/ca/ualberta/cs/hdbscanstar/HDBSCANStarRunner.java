@@ -2,6 +2,7 @@ package ca.ualberta.cs.hdbscanstar;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import ca.ualberta.cs.distance.CosineSimilarity;
 import ca.ualberta.cs.distance.DistanceCalculator;
@@ -22,6 +23,7 @@ public class HDBSCANStarRunner {
 	private static final String MIN_CL_SIZE_FLAG = "minClSize=";
 	private static final String COMPACT_FLAG = "compact=";
 	private static final String DISTANCE_FUNCTION_FLAG = "dist_function=";
+	private static final String MAX_EPSILON_FLAG = "maxEpsilon=";
 
 	private static final String EUCLIDEAN_DISTANCE = "euclidean";
 	private static final String COSINE_SIMILARITY = "cosine";
@@ -45,9 +47,11 @@ public class HDBSCANStarRunner {
 		//Parse input parameters from program arguments:
 		HDBSCANStarParameters parameters = checkInputParameters(args);
 		
-		System.out.println("Running HDBSCAN* on " + parameters.inputFile + " with minPts=" + parameters.minPoints + 
+		System.out.println("Running HDBSCAN* on " + parameters.inputFile + " with minPts=" + 
+				Arrays.toString(parameters.minPoints) + 
 				", minClSize=" + parameters.minClusterSize + ", constraints=" + parameters.constraintsFile + 
-				", compact=" + parameters.compactHierarchy + ", dist_function=" + parameters.distanceFunction.getName());
+				", compact=" + parameters.compactHierarchy + ", dist_function=" + parameters.distanceFunction.getName() +
+				", maxEpsilon=" + parameters.maxEpsilon);
 		
 		//Read in input file:
 		double[][] dataSet = null;
@@ -72,20 +76,40 @@ public class HDBSCANStarRunner {
 			}
 		}
 
-		//Compute core distances:
+		//Compute core distances for every value of minPts in one search:
 		long startTime = System.currentTimeMillis();
-		double[] coreDistances = HDBSCANStar.calculateCoreDistances(dataSet, parameters.minPoints, parameters.distanceFunction);
+		double[][] sweepCoreDistances = HDBSCANStar.calculateCoreDistances(dataSet, parameters.minPoints, 
+				parameters.distanceFunction, parameters.maxEpsilon);
 		System.out.println("Time to compute core distances (ms): " + (System.currentTimeMillis() - startTime));
 
+		for (int run = 0; run < parameters.minPoints.length; run++) {
+			//Each value of minPts writes its own output files:
+			if (parameters.minPoints.length > 1) {
+				System.out.println("Running HDBSCAN* with minPts=" + parameters.minPoints[run]);
+				assignOutputFiles(parameters, parameters.outputName + "_minPts" + parameters.minPoints[run]);
+			}
+			runHierarchy(parameters, dataSet, sweepCoreDistances[run], constraints);
+		}
+
+		System.out.println("Overall runtime (ms): " + (System.currentTimeMillis() - overallStartTime));
+	}
+
+
+	/**
+	 * Runs the steps of HDBSCAN* that follow the core distances for one value of minPts, writing 
+	 * the output files named in the parameters.
+	 */
+	private static void runHierarchy(HDBSCANStarParameters parameters, double[][] dataSet, 
+			double[] coreDistances, ArrayList<Constraint> constraints) {
+		int numPoints = dataSet.length;
+
 		//Calculate minimum spanning tree:
-		startTime = System.currentTimeMillis();
-		UndirectedGraph mst = HDBSCANStar.constructMST(dataSet, coreDistances, true, parameters.distanceFunction);
+		long startTime = System.currentTimeMillis();
+		UndirectedGraph mst = HDBSCANStar.constructMST(dataSet, coreDistances, true, parameters.distanceFunction, 
+				parameters.maxEpsilon);
 		mst.quicksortByEdgeWeight();
 		System.out.println("Time to calculate MST (ms): " + (System.currentTimeMillis() - startTime));
 
-		//Remove references to unneeded objects:
-		dataSet = null;
-		
 		double[] pointNoiseLevels = new double[numPoints];
 		int[] pointLastClusters = new int[numPoints];
 
@@ -132,8 +156,6 @@ public class HDBSCANStarRunner {
 			System.err.println("Error writing to outlier score file.");
 			System.exit(-1);
 		}
-		
-		System.out.println("Overall runtime (ms): " + (System.currentTimeMillis() - overallStartTime));
 	}
 
 
@@ -147,6 +169,7 @@ public class HDBSCANStarRunner {
 		HDBSCANStarParameters parameters = new HDBSCANStarParameters();
 		parameters.distanceFunction = new EuclideanDistance();
 		parameters.compactHierarchy = false;
+		parameters.maxEpsilon = Double.POSITIVE_INFINITY;
 
 		//Read in the input arguments and assign them to variables:
 		for (String argument : args) {
@@ -162,7 +185,12 @@ public class HDBSCANStarRunner {
 			//Assign minPoints:
 			else if (argument.startsWith(MIN_PTS_FLAG) && argument.length() > MIN_PTS_FLAG.length()) {
 				try {
-					parameters.minPoints = Integer.parseInt(argument.substring(MIN_PTS_FLAG.length()));
+					String[] values = argument.substring(MIN_PTS_FLAG.length()).split(",");
+					int[] minPoints = new int[values.length];
+					for (int i = 0; i < values.length; i++) {
+						minPoints[i] = Integer.parseInt(values[i].trim());
+					}
+					parameters.minPoints = minPoints;
 				}
 				catch (NumberFormatException nfe) {
 					System.out.println("Illegal value for minPts.");
@@ -184,6 +212,16 @@ public class HDBSCANStarRunner {
 				parameters.compactHierarchy = Boolean.parseBoolean(argument.substring(COMPACT_FLAG.length()));
 			}
 
+			//Assign maximum epsilon:
+			else if (argument.startsWith(MAX_EPSILON_FLAG) && argument.length() > MAX_EPSILON_FLAG.length()) {
+				try {
+					parameters.maxEpsilon = Double.parseDouble(argument.substring(MAX_EPSILON_FLAG.length()));
+				}
+				catch (NumberFormatException nfe) {
+					System.out.println("Illegal value for maxEpsilon.");
+				}
+			}
+
 			//Assign distance function:
 			else if (argument.startsWith(DISTANCE_FUNCTION_FLAG) && argument.length() > DISTANCE_FUNCTION_FLAG.length()) {
 				String functionName = argument.substring(DISTANCE_FUNCTION_FLAG.length());
@@ -225,17 +263,25 @@ public class HDBSCANStarRunner {
 		String inputName = parameters.inputFile;
 		if (parameters.inputFile.contains("."))
 			inputName = parameters.inputFile.substring(0, parameters.inputFile.lastIndexOf("."));
+		parameters.outputName = inputName;
+		assignOutputFiles(parameters, inputName);
 		
+		return parameters;
+	}
+
+
+	/**
+	 * Names the output files of one run after the given name.
+	 */
+	private static void assignOutputFiles(HDBSCANStarParameters parameters, String name) {
 		if (parameters.compactHierarchy)
-			parameters.hierarchyFile = inputName + "_compact_hierarchy.csv";
+			parameters.hierarchyFile = name + "_compact_hierarchy.csv";
 		else
-			parameters.hierarchyFile = inputName + "_hierarchy.csv";
-		parameters.clusterTreeFile = inputName + "_tree.csv";
-		parameters.partitionFile = inputName + "_partition.csv";
-		parameters.outlierScoreFile = inputName + "_outlier_scores.csv";
-		parameters.visualizationFile = inputName + "_visualization.vis";
-		
-		return parameters;
+			parameters.hierarchyFile = name + "_hierarchy.csv";
+		parameters.clusterTreeFile = name + "_tree.csv";
+		parameters.partitionFile = name + "_partition.csv";
+		parameters.outlierScoreFile = name + "_outlier_scores.csv";
+		parameters.visualizationFile = name + "_visualization.vis";
 	}
 
 
@@ -249,8 +295,10 @@ public class HDBSCANStarRunner {
 				"flat partitioning, and outlier scores for an input data set.");
 		System.out.println("Usage: java -jar HDBSCANStar.jar file=<input file> minPts=<minPts value> " + 
 				"minClSize=<minClSize value> [constraints=<constraints file>] [compact={true,false}] " + 
-				"[dist_function=<distance function>]");
+				"[dist_function=<distance function>] [maxEpsilon=<maxEpsilon value>]");
 		System.out.println("By default the hierarchy produced is non-compact (full), and euclidean distance is used.");
+		System.out.println("Several comma-separated values of minPts, such as minPts=4,8,16, are run from a single " +
+				"nearest neighbor search, with the output files of each named <input>_minPts<value>_...");
 		System.out.println("Example usage: \"java -jar HDBSCANStar.jar file=input.csv minPts=4 minClSize=4\"");
 		System.out.println("Example usage: \"java -jar HDBSCANStar.jar file=collection.csv minPts=6 minClSize=1 " + 
 				"constraints=collection_constraints.csv dist_function=manhattan\"");
@@ -312,6 +360,13 @@ public class HDBSCANStarRunner {
 				"become noise, while the compact hierarchy only includes levels where clusters are born or die.");
 		System.out.println();
 
+		System.out.println("The optional maxEpsilon flag limits the hierarchy to mutual reachability distances " +
+				"up to that value, which is much faster for sparse data.");
+		System.out.println("Objects with fewer than minPts objects, themselves included, within maxEpsilon are " +
+				"noise at every level, and clusters only link objects through mutual reachability distances " +
+				"up to maxEpsilon.");
+		System.out.println();
+
 		System.out.println("Possible values for the optional dist_function flag are:");
 		System.out.println("euclidean: Euclidean Distance, d = sqrt((x1-y1)^2 + (x2-y2)^2 + ... + (xn-yn)^2)");
 		System.out.println("cosine: Cosine Similarity, d = 1 - ((XY) / (||X||*||Y||))");
@@ -330,11 +385,13 @@ public class HDBSCANStarRunner {
 	private static class HDBSCANStarParameters {
 		public String inputFile;
 		public String constraintsFile;
-		public Integer minPoints;
+		public int[] minPoints;
 		public Integer minClusterSize;
 		public boolean compactHierarchy;
 		public DistanceCalculator distanceFunction;
+		public double maxEpsilon;
 		
+		public String outputName;
 		public String hierarchyFile;
 		public String clusterTreeFile;
 		public String partitionFile;
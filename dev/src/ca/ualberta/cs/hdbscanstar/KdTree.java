@@ -0,0 +1,824 @@
+package ca.ualberta.cs.hdbscanstar;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ca.ualberta.cs.distance.DistanceCalculator;
+import ca.ualberta.cs.distance.EuclideanDistance;
+import ca.ualberta.cs.distance.ManhattanDistance;
+import ca.ualberta.cs.distance.SupremumDistance;
+
+/**
+ * A kd-tree over the rows of a d-dimensional data set, used to find k nearest neighbors without
+ * comparing every pair of points.  Each interior node splits its points on the dimension in which
+ * they are most spread out, at the median of that dimension, so the tree stays balanced and adapts
+ * to data whose dimensions have very different ranges.  Ranges of at most LEAF_SIZE points are
+ * leaves and are scanned linearly.
+ *
+ * The tree is implicit: the node covering positions [lo, hi) of the index array keeps its splitting
+ * point at mid = (lo + hi) / 2, its left subtree in [lo, mid) and its right subtree in [mid+1, hi).
+ * The data set itself is not copied or modified.
+ *
+ * Pruning uses the difference on the split dimension as a lower bound on the distance to the other
+ * side of a split, which holds for the Minkowski distances (euclidean, manhattan and supremum).
+ *
+ * The tree also builds the minimum spanning tree of mutual reachability distances with Boruvka's
+ * algorithm, finding the lightest edge leaving every component with a dual-tree traversal: pairs of
+ * subtrees are skipped when they lie entirely in the same component, or when the distance between
+ * their bounding boxes or their smallest core distance is no lighter than the edges already found
+ * for the components on the query side.  Nearby points share these decisions, so in two dimensions
+ * each round costs about as much as one nearest neighbor search for every point.  Boxes overlap
+ * more as dimensions are added, and there the single-tree search of a VantagePointTree prunes
+ * better, so HDBSCANStar.constructMST() only uses this tree for data with at most two attributes.
+ */
+public class KdTree {
+
+	// ------------------------------ PRIVATE VARIABLES ------------------------------
+
+	private double[][] dataSet;
+	private DistanceCalculator distanceFunction;
+	private int[] index;			//The data set row at each tree position
+	private int[] splitDimensions;	//The split dimension of the interior node at each median position
+
+	//Used while building the minimum spanning tree, indexed by the median position of a subtree:
+	private int numAttributes;
+	private double[] boxMin;		//The smallest value of each attribute in the subtree
+	private double[] boxMax;		//The largest value of each attribute in the subtree
+	private double[] subtreeMinCore;
+	private int[] subtreeComponent;	//The component of every point in the subtree, MIXED or NONE
+	private double[] subtreeBound;	//No component in the subtree has a heavier lightest edge
+	private double[] gap;
+	private double[] origin;
+	private double[] coreDistances;
+	private double maxWeight;		//Edges must be strictly lighter than this
+	private int[] components;
+	private double[] bestWeights;
+	private int[] bestA;
+	private int[] bestB;
+
+	// ------------------------------ CONSTANTS ------------------------------
+
+	private static final int LEAF_SIZE = 16;
+	private static final int PARALLEL_THRESHOLD = 2048;
+	private static final int MIXED = -1;		//A subtree with points of several components
+	private static final int NONE = -2;			//A subtree with no point that can have edges
+
+	// ------------------------------ CONSTRUCTORS ------------------------------
+
+	/**
+	 * Builds a kd-tree over all rows of the data set.
+	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
+	 * @param distanceFunction A DistanceCalculator supported by the tree (see supports())
+	 */
+	public KdTree(double[][] dataSet, DistanceCalculator distanceFunction) {
+		if (!supports(distanceFunction))
+			throw new IllegalArgumentException("A kd-tree cannot prune with the " +
+					distanceFunction.getName() + " distance.");
+
+		this.dataSet = dataSet;
+		this.distanceFunction = distanceFunction;
+		this.index = new int[dataSet.length];
+		this.splitDimensions = new int[dataSet.length];
+
+		for (int i = 0; i < dataSet.length; i++) {
+			this.index[i] = i;
+		}
+		this.build(0, dataSet.length);
+	}
+
+	// ------------------------------ PUBLIC METHODS ------------------------------
+
+	/**
+	 * Returns true if the kd-tree can find exact nearest neighbors under the given distance, which
+	 * must be bounded from below by the difference in any single attribute.
+	 * @param distanceFunction A DistanceCalculator
+	 * @return Whether a KdTree can be built for the distance function
+	 */
+	public static boolean supports(DistanceCalculator distanceFunction) {
+		return distanceFunction instanceof EuclideanDistance ||
+				distanceFunction instanceof ManhattanDistance ||
+				distanceFunction instanceof SupremumDistance;
+	}
+
+
+	/**
+	 * Calculates the core distance of every point, which is the distance to its (k-1)th nearest
+	 * other point, the same as HDBSCANStar.calculateCoreDistances().  Points are searched on all
+	 * available processors.
+	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
+	 * @return An array of core distances
+	 */
+	public double[] calculateCoreDistances(int k) {
+		return this.calculateCoreDistances(k, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * Calculates the core distance of every point like calculateCoreDistances(int), without
+	 * searching farther than maxEpsilon from any point.  Points that do not have k-1 other points
+	 * within maxEpsilon get an infinite core distance.
+	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances
+	 */
+	public double[] calculateCoreDistances(int k, double maxEpsilon) {
+		return this.calculateCoreDistances(new int[] {k}, maxEpsilon)[0];
+	}
+
+
+	/**
+	 * Calculates the core distances of every point for several values of k in one search for the
+	 * neighbors of the largest k.  The core distance for each value is read from the same sorted
+	 * neighbor distances, so a sweep over minPts costs about as much as its largest value.
+	 * @param ks The values of k, in any order
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances for each value of k, in the order of ks
+	 */
+	public double[][] calculateCoreDistances(int[] ks, double maxEpsilon) {
+		final double[][] coreDistances = new double[ks.length][this.dataSet.length];
+		int numNeighbors = 0;
+		for (int k : ks) {
+			numNeighbors = Math.max(numNeighbors, k-1);
+		}
+
+		if (numNeighbors <= 0)
+			return coreDistances;
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new CoreDistanceTask(0, this.dataSet.length, ks, numNeighbors, maxEpsilon, coreDistances));
+		}
+		finally {
+			pool.shutdown();
+		}
+		return coreDistances;
+	}
+
+
+	/**
+	 * Finds the nearest other points to a point of the data set.  Duplicates of the point count as
+	 * neighbors at distance 0.
+	 * @param point The row of the query point
+	 * @param numNeighbors The number of neighbors to find
+	 * @param neighbors Filled with the rows of the neighbors found, nearest first
+	 * @param distances Filled with the distances to the neighbors found, nearest first
+	 * @return The number of neighbors found, which is less than numNeighbors only if the data set
+	 * has numNeighbors points or fewer
+	 */
+	public int findNeighbors(int point, int numNeighbors, int[] neighbors, double[] distances) {
+		if (numNeighbors <= 0)
+			return 0;
+		int size = this.search(0, this.dataSet.length, point, numNeighbors, neighbors, distances, 0,
+				Double.POSITIVE_INFINITY);
+
+		//Sort the max-heap in place, largest distance last:
+		for (int end = size-1; end > 0; end--) {
+			swap(neighbors, distances, 0, end);
+			siftDown(neighbors, distances, 0, end);
+		}
+		return size;
+	}
+
+
+	/**
+	 * Constructs the minimum spanning tree of mutual reachability distances for the data set, in
+	 * the same form as HDBSCANStar.constructMST().  When several spanning trees have the same
+	 * weight, a different one than HDBSCANStar.constructMST() may be returned.
+	 * @param coreDistances An array of core distances for each data point
+	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
+	 * @return An MST for the data set using the mutual reachability distances
+	 */
+	public UndirectedGraph constructMST(double[] coreDistances, boolean selfEdges) {
+		return this.constructMST(coreDistances, selfEdges, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * Constructs the minimum spanning forest of mutual reachability distances up to maxEpsilon.
+	 * No edge longer than maxEpsilon is searched for, so points farther apart than that end up in
+	 * different trees of the forest, and points with an infinite core distance have no edges
+	 * other than their self edges.  Each round of Boruvka's algorithm is a single traversal of
+	 * pairs of subtrees on the calling thread.
+	 * @param coreDistances An array of core distances for each data point
+	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
+	 * @param maxEpsilon The largest mutual reachability distance of an edge
+	 * @return An MST, or a forest, for the data set using the mutual reachability distances
+	 */
+	public UndirectedGraph constructMST(double[] coreDistances, boolean selfEdges, double maxEpsilon) {
+		int numPoints = this.dataSet.length;
+		int selfEdgeCapacity = selfEdges ? numPoints : 0;
+		int[] verticesA = new int[Math.max(0, numPoints-1) + selfEdgeCapacity];
+		int[] verticesB = new int[verticesA.length];
+		double[] edgeWeights = new double[verticesA.length];
+		int numEdges = 0;
+
+		int[] parents = new int[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			parents[i] = i;
+		}
+
+		this.numAttributes = numPoints > 0 ? this.dataSet[0].length : 0;
+		this.boxMin = new double[numPoints * this.numAttributes];
+		this.boxMax = new double[numPoints * this.numAttributes];
+		this.subtreeMinCore = new double[numPoints];
+		this.subtreeComponent = new int[numPoints];
+		this.subtreeBound = new double[numPoints];
+		this.gap = new double[this.numAttributes];
+		this.origin = new double[this.numAttributes];
+		this.coreDistances = coreDistances;
+		this.maxWeight = maxEpsilon == Double.POSITIVE_INFINITY ? Double.MAX_VALUE : Math.nextUp(maxEpsilon);
+		this.components = new int[numPoints];
+		this.bestWeights = new double[numPoints];
+		this.bestA = new int[numPoints];
+		this.bestB = new int[numPoints];
+		if (numPoints > 0)
+			this.computeBoxes(0, numPoints);
+
+		while (numEdges < numPoints-1) {
+			for (int i = 0; i < numPoints; i++) {
+				this.components[i] = find(parents, i);
+			}
+			this.computeComponents(0, numPoints);
+			Arrays.fill(this.bestWeights, this.maxWeight);
+			Arrays.fill(this.bestB, -1);
+			Arrays.fill(this.subtreeBound, this.maxWeight);
+
+			//Find the lightest edge leaving each component, comparing every subtree with every other:
+			this.traverse(0, numPoints, 0, numPoints, 0);
+
+			//Merge the components along their lightest edges, skipping edges that close a cycle:
+			int edgesBefore = numEdges;
+			for (int component = 0; component < numPoints; component++) {
+				if (this.bestB[component] < 0)
+					continue;
+				int rootA = find(parents, this.bestA[component]);
+				int rootB = find(parents, this.bestB[component]);
+				if (rootA == rootB)
+					continue;
+				parents[rootA] = rootB;
+				verticesA[numEdges] = this.bestA[component];
+				verticesB[numEdges] = this.bestB[component];
+				edgeWeights[numEdges] = this.bestWeights[component];
+				numEdges++;
+			}
+			if (numEdges == edgesBefore)
+				break;
+		}
+
+		this.boxMin = null;
+		this.boxMax = null;
+		this.subtreeMinCore = null;
+		this.subtreeComponent = null;
+		this.subtreeBound = null;
+		this.gap = null;
+		this.origin = null;
+		this.coreDistances = null;
+		this.components = null;
+		this.bestWeights = null;
+		this.bestA = null;
+		this.bestB = null;
+
+		//If necessary, attach self edges:
+		if (selfEdges) {
+			for (int vertex = 0; vertex < numPoints; vertex++) {
+				verticesA[numEdges] = vertex;
+				verticesB[numEdges] = vertex;
+				edgeWeights[numEdges] = coreDistances[vertex];
+				numEdges++;
+			}
+		}
+
+		//A forest has fewer edges than the arrays have room for:
+		if (numEdges < verticesA.length) {
+			verticesA = Arrays.copyOf(verticesA, numEdges);
+			verticesB = Arrays.copyOf(verticesB, numEdges);
+			edgeWeights = Arrays.copyOf(edgeWeights, numEdges);
+		}
+
+		return new UndirectedGraph(numPoints, verticesA, verticesB, edgeWeights);
+	}
+
+	// ------------------------------ PRIVATE METHODS ------------------------------
+
+	/**
+	 * Arranges positions [lo, hi) of the index into the implicit kd-tree layout.
+	 */
+	private void build(int lo, int hi) {
+		while (hi - lo > LEAF_SIZE) {
+			int mid = (lo + hi) >>> 1;
+			int dimension = this.widestDimension(lo, hi);
+			this.splitDimensions[mid] = dimension;
+			this.select(lo, hi, mid, dimension);
+			this.build(lo, mid);
+			lo = mid+1;
+		}
+	}
+
+
+	/**
+	 * Returns the dimension with the largest range of values over positions [lo, hi).
+	 */
+	private int widestDimension(int lo, int hi) {
+		int numAttributes = this.dataSet[this.index[lo]].length;
+		double[] min = new double[numAttributes];
+		double[] max = new double[numAttributes];
+		System.arraycopy(this.dataSet[this.index[lo]], 0, min, 0, numAttributes);
+		System.arraycopy(this.dataSet[this.index[lo]], 0, max, 0, numAttributes);
+
+		for (int i = lo+1; i < hi; i++) {
+			double[] row = this.dataSet[this.index[i]];
+			for (int d = 0; d < numAttributes; d++) {
+				if (row[d] < min[d])
+					min[d] = row[d];
+				else if (row[d] > max[d])
+					max[d] = row[d];
+			}
+		}
+
+		int widest = 0;
+		for (int d = 1; d < numAttributes; d++) {
+			if (max[d] - min[d] > max[widest] - min[widest])
+				widest = d;
+		}
+		return widest;
+	}
+
+
+	/**
+	 * Rearranges positions [lo, hi) of the index so that the point at nth has the value it would
+	 * have if the range were sorted on the given dimension, with no greater values before it and no
+	 * smaller values after it.
+	 */
+	private void select(int lo, int hi, int nth, int dimension) {
+		while (hi - lo > 1) {
+			double pivot = this.value(lo + (hi - lo)/2, dimension);
+			int lt = lo;
+			int i = lo;
+			int gt = hi;
+			while (i < gt) {
+				double value = this.value(i, dimension);
+				if (value < pivot)
+					swap(this.index, lt++, i++);
+				else if (value > pivot)
+					swap(this.index, i, --gt);
+				else
+					i++;
+			}
+			if (nth < lt)
+				hi = lt;
+			else if (nth >= gt)
+				lo = gt;
+			else
+				return;
+		}
+	}
+
+
+	private double value(int position, int dimension) {
+		return this.dataSet[this.index[position]][dimension];
+	}
+
+
+	/**
+	 * Stores the bounding box and the smallest core distance of every subtree of two or more
+	 * points at its median position.  That is the splitting point of an interior node and a point
+	 * of its own for a leaf, so no two subtrees share a position.  A single point is its own box.
+	 */
+	private void computeBoxes(int lo, int hi) {
+		if (hi - lo < 2)
+			return;
+		int mid = (lo + hi) >>> 1;
+		int offset = mid * this.numAttributes;
+		double minCore = Double.POSITIVE_INFINITY;
+		boolean leaf = hi - lo <= LEAF_SIZE;
+
+		//A leaf covers all of its points, an interior node its splitting point and its children:
+		System.arraycopy(this.dataSet[this.index[mid]], 0, this.boxMin, offset, this.numAttributes);
+		System.arraycopy(this.dataSet[this.index[mid]], 0, this.boxMax, offset, this.numAttributes);
+		for (int position = leaf ? lo : mid; position < (leaf ? hi : mid+1); position++) {
+			double[] row = this.dataSet[this.index[position]];
+			for (int d = 0; d < this.numAttributes; d++) {
+				this.boxMin[offset + d] = Math.min(this.boxMin[offset + d], row[d]);
+				this.boxMax[offset + d] = Math.max(this.boxMax[offset + d], row[d]);
+			}
+			minCore = Math.min(minCore, this.pointMinCore(position));
+		}
+		if (!leaf) {
+			this.computeBoxes(lo, mid);
+			this.computeBoxes(mid+1, hi);
+			for (int child = 0; child < 2; child++) {
+				int childLo = child == 0 ? lo : mid+1;
+				int childHi = child == 0 ? mid : hi;
+				if (childLo >= childHi)
+					continue;
+				for (int d = 0; d < this.numAttributes; d++) {
+					this.boxMin[offset + d] = Math.min(this.boxMin[offset + d], this.lower(childLo, childHi, d));
+					this.boxMax[offset + d] = Math.max(this.boxMax[offset + d], this.upper(childLo, childHi, d));
+				}
+				minCore = Math.min(minCore, this.minCore(childLo, childHi));
+			}
+		}
+		this.subtreeMinCore[mid] = minCore;
+	}
+
+
+	/**
+	 * Stores the component shared by all points of every subtree of two or more points, MIXED or
+	 * NONE, at the same position as its box, and returns it.
+	 */
+	private int computeComponents(int lo, int hi) {
+		if (hi - lo == 1)
+			return this.pointComponent(lo);
+
+		int mid = (lo + hi) >>> 1;
+		int shared = NONE;
+		if (hi - lo <= LEAF_SIZE) {
+			for (int position = lo; position < hi; position++) {
+				shared = merge(shared, this.pointComponent(position));
+			}
+		}
+		else {
+			shared = this.pointComponent(mid);
+			if (lo < mid)
+				shared = merge(shared, this.computeComponents(lo, mid));
+			if (mid+1 < hi)
+				shared = merge(shared, this.computeComponents(mid+1, hi));
+		}
+		this.subtreeComponent[mid] = shared;
+		return shared;
+	}
+
+
+	private static int merge(int componentA, int componentB) {
+		if (componentA == NONE)
+			return componentB;
+		if (componentB == NONE || componentA == componentB)
+			return componentA;
+		return MIXED;
+	}
+
+
+	/**
+	 * Returns whether the point at a tree position can have edges, which requires a core distance
+	 * lighter than the heaviest edge allowed.
+	 */
+	private boolean takesPart(int position) {
+		return this.coreDistances[this.index[position]] < this.maxWeight;
+	}
+
+
+	private double pointMinCore(int position) {
+		return this.takesPart(position) ? this.coreDistances[this.index[position]] : Double.POSITIVE_INFINITY;
+	}
+
+
+	private double minCore(int lo, int hi) {
+		return hi - lo == 1 ? this.pointMinCore(lo) : this.subtreeMinCore[(lo + hi) >>> 1];
+	}
+
+
+	private int pointComponent(int position) {
+		return this.takesPart(position) ? this.components[this.index[position]] : NONE;
+	}
+
+
+	private int component(int lo, int hi) {
+		return hi - lo == 1 ? this.pointComponent(lo) : this.subtreeComponent[(lo + hi) >>> 1];
+	}
+
+
+	private double lower(int lo, int hi, int dimension) {
+		return hi - lo == 1 ? this.value(lo, dimension) : this.boxMin[((lo + hi) >>> 1) * this.numAttributes + dimension];
+	}
+
+
+	private double upper(int lo, int hi, int dimension) {
+		return hi - lo == 1 ? this.value(lo, dimension) : this.boxMax[((lo + hi) >>> 1) * this.numAttributes + dimension];
+	}
+
+
+	/**
+	 * Returns a weight that the lightest edge found for every component in a subtree is already no
+	 * heavier than.  For a subtree within one component that is the edge of the component itself;
+	 * other subtrees keep the bound they had when the traversal last left them, which stays valid
+	 * because edges found only get lighter.
+	 */
+	private double bound(int lo, int hi) {
+		if (hi - lo == 1)
+			return this.pointBound(lo);
+		int mid = (lo + hi) >>> 1;
+		int shared = this.subtreeComponent[mid];
+		if (shared >= 0)
+			return this.bestWeights[shared];
+		return shared == NONE ? 0 : this.subtreeBound[mid];
+	}
+
+
+	private double pointBound(int position) {
+		return this.takesPart(position) ? this.bestWeights[this.components[this.index[position]]] : 0;
+	}
+
+
+	/**
+	 * Returns a lower bound on the distance between any point of one subtree and any point of
+	 * another: the distance from the origin to the gaps between their boxes, which holds for the
+	 * Minkowski distances.
+	 */
+	private double boxDistance(int loA, int hiA, int loB, int hiB) {
+		for (int d = 0; d < this.numAttributes; d++) {
+			double gapAB = this.lower(loB, hiB, d) - this.upper(loA, hiA, d);
+			double gapBA = this.lower(loA, hiA, d) - this.upper(loB, hiB, d);
+			this.gap[d] = Math.max(0, Math.max(gapAB, gapBA));
+		}
+		return this.distanceFunction.computeDistance(this.gap, this.origin);
+	}
+
+
+	/**
+	 * Finds lighter edges from the points of the query subtree [queryLo, queryHi) to points of
+	 * other components in the reference subtree [refLo, refHi), unless the pair of subtrees cannot
+	 * hold any.  Interior nodes are split into their left child, their splitting point and their
+	 * right child.  Both subtrees are non-empty and boxDistance is the distance between their boxes.
+	 */
+	private void traverse(int queryLo, int queryHi, int refLo, int refHi, double boxDistance) {
+		int shared = this.component(queryLo, queryHi);
+		if (shared == NONE || (shared != MIXED && shared == this.component(refLo, refHi)))
+			return;
+		double minCore = Math.max(this.minCore(queryLo, queryHi), this.minCore(refLo, refHi));
+		if (Math.max(minCore, boxDistance) >= this.bound(queryLo, queryHi))
+			return;
+
+		boolean queryLeaf = queryHi - queryLo <= LEAF_SIZE;
+		boolean refLeaf = refHi - refLo <= LEAF_SIZE;
+
+		if (queryLeaf && refLeaf) {
+			this.scorePairs(queryLo, queryHi, refLo, refHi);
+		}
+		else if (queryLeaf) {
+			this.splitReference(queryLo, queryHi, refLo, refHi);
+		}
+		else {
+			int mid = (queryLo + queryHi) >>> 1;
+			this.splitReference(queryLo, mid, refLo, refHi);
+			this.splitReference(mid, mid+1, refLo, refHi);
+			this.splitReference(mid+1, queryHi, refLo, refHi);
+
+			//Edges found for the parts of the query subtree bound the whole of it:
+			double bound = this.pointBound(mid);
+			if (queryLo < mid)
+				bound = Math.max(bound, this.bound(queryLo, mid));
+			if (mid+1 < queryHi)
+				bound = Math.max(bound, this.bound(mid+1, queryHi));
+			this.subtreeBound[mid] = bound;
+		}
+	}
+
+
+	/**
+	 * Traverses the parts of an interior reference subtree nearest to the query subtree first, so
+	 * that lighter edges are found before the farther parts are tested.  Parts are ordered by the
+	 * distance between boxes alone, since close to the query most of them share the same smallest
+	 * core distance.
+	 */
+	private void splitReference(int queryLo, int queryHi, int refLo, int refHi) {
+		if (queryLo >= queryHi)
+			return;
+		if (refHi - refLo <= LEAF_SIZE) {
+			this.traverse(queryLo, queryHi, refLo, refHi, this.boxDistance(queryLo, queryHi, refLo, refHi));
+			return;
+		}
+
+		int mid = (refLo + refHi) >>> 1;
+		int[] from = {refLo, mid, mid+1};
+		int[] to = {mid, mid+1, refHi};
+		double[] distances = new double[3];
+		for (int i = 0; i < 3; i++) {
+			distances[i] = from[i] < to[i] ? this.boxDistance(queryLo, queryHi, from[i], to[i]) : Double.POSITIVE_INFINITY;
+		}
+		for (int visited = 0; visited < 3; visited++) {
+			int nearest = -1;
+			for (int i = 0; i < 3; i++) {
+				if (distances[i] >= 0 && (nearest < 0 || distances[i] < distances[nearest]))
+					nearest = i;
+			}
+			//Only an empty part is infinitely far:
+			if (distances[nearest] == Double.POSITIVE_INFINITY)
+				return;
+			double boxDistance = distances[nearest];
+			distances[nearest] = -1;
+			this.traverse(queryLo, queryHi, from[nearest], to[nearest], boxDistance);
+		}
+	}
+
+
+	/**
+	 * Compares every point of a query leaf with every point of a reference leaf, keeping the
+	 * lightest edge leaving each component of the query points.
+	 */
+	private void scorePairs(int queryLo, int queryHi, int refLo, int refHi) {
+		for (int queryPosition = queryLo; queryPosition < queryHi; queryPosition++) {
+			if (!this.takesPart(queryPosition))
+				continue;
+			int point = this.index[queryPosition];
+			int component = this.components[point];
+			double coreDistance = this.coreDistances[point];
+
+			for (int refPosition = refLo; refPosition < refHi; refPosition++) {
+				//Every edge from the point is at least as heavy as its core distance:
+				if (coreDistance >= this.bestWeights[component])
+					break;
+				int neighbor = this.index[refPosition];
+				if (neighbor == point || !this.takesPart(refPosition) || this.components[neighbor] == component)
+					continue;
+
+				double weight = Math.max(coreDistance, this.coreDistances[neighbor]);
+				if (weight >= this.bestWeights[component])
+					continue;
+				weight = Math.max(weight, this.distanceFunction.computeDistance(this.dataSet[point],
+						this.dataSet[neighbor]));
+				if (weight < this.bestWeights[component]) {
+					this.bestWeights[component] = weight;
+					this.bestA[component] = point;
+					this.bestB[component] = neighbor;
+				}
+			}
+		}
+
+		if (queryHi - queryLo > 1) {
+			double bound = 0;
+			for (int position = queryLo; position < queryHi; position++) {
+				bound = Math.max(bound, this.pointBound(position));
+			}
+			this.subtreeBound[(queryLo + queryHi) >>> 1] = bound;
+		}
+	}
+
+
+	private static int find(int[] parents, int vertex) {
+		while (parents[vertex] != vertex) {
+			parents[vertex] = parents[parents[vertex]];
+			vertex = parents[vertex];
+		}
+		return vertex;
+	}
+
+
+	/**
+	 * Searches positions [lo, hi) for the nearest neighbors of a point, keeping them in a max-heap
+	 * of the given capacity in neighbors and distances.  Subtrees farther than radius from the point
+	 * are skipped.  Returns the new size of the heap.
+	 */
+	private int search(int lo, int hi, int point, int capacity, int[] neighbors, double[] distances,
+			int size, double radius) {
+
+		double[] query = this.dataSet[point];
+
+		if (hi - lo <= LEAF_SIZE) {
+			for (int i = lo; i < hi; i++)
+				size = this.offer(i, point, capacity, neighbors, distances, size);
+			return size;
+		}
+
+		int mid = (lo + hi) >>> 1;
+		int dimension = this.splitDimensions[mid];
+		double difference = query[dimension] - this.value(mid, dimension);
+
+		size = this.offer(mid, point, capacity, neighbors, distances, size);
+		if (difference < 0)
+			size = this.search(lo, mid, point, capacity, neighbors, distances, size, radius);
+		else
+			size = this.search(mid+1, hi, point, capacity, neighbors, distances, size, radius);
+
+		if (Math.abs(difference) > radius || (size == capacity && Math.abs(difference) >= distances[0]))
+			return size;
+
+		if (difference < 0)
+			size = this.search(mid+1, hi, point, capacity, neighbors, distances, size, radius);
+		else
+			size = this.search(lo, mid, point, capacity, neighbors, distances, size, radius);
+		return size;
+	}
+
+
+	/**
+	 * Offers the point at a tree position to a max-heap of neighbors, returning the new heap size.
+	 */
+	private int offer(int position, int point, int capacity, int[] neighbors, double[] distances,
+			int size) {
+
+		int neighbor = this.index[position];
+		if (neighbor == point)
+			return size;
+
+		double distance = this.distanceFunction.computeDistance(this.dataSet[point], this.dataSet[neighbor]);
+		if (size < capacity) {
+			int i = size;
+			while (i > 0 && distances[(i-1)/2] < distance) {
+				neighbors[i] = neighbors[(i-1)/2];
+				distances[i] = distances[(i-1)/2];
+				i = (i-1)/2;
+			}
+			neighbors[i] = neighbor;
+			distances[i] = distance;
+			return size+1;
+		}
+		if (distance < distances[0]) {
+			neighbors[0] = neighbor;
+			distances[0] = distance;
+			siftDown(neighbors, distances, 0, size);
+		}
+		return size;
+	}
+
+
+	private static void siftDown(int[] neighbors, double[] distances, int i, int size) {
+		while (2*i + 1 < size) {
+			int child = 2*i + 1;
+			if (child+1 < size && distances[child+1] > distances[child])
+				child++;
+			if (distances[i] >= distances[child])
+				return;
+			swap(neighbors, distances, i, child);
+			i = child;
+		}
+	}
+
+
+	private static void swap(int[] neighbors, double[] distances, int i, int j) {
+		swap(neighbors, i, j);
+		double distance = distances[i];
+		distances[i] = distances[j];
+		distances[j] = distance;
+	}
+
+
+	private static void swap(int[] values, int i, int j) {
+		int value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	// ------------------------------ INNER CLASSES ------------------------------
+
+	/**
+	 * Computes the core distances of the points at a range of tree positions, splitting the range
+	 * in half until it is small enough to search sequentially.  Neighboring positions hold nearby
+	 * points, so each thread works on one region of the data.
+	 */
+	@SuppressWarnings("serial")
+	private class CoreDistanceTask extends RecursiveAction {
+
+		private int from;
+		private int to;
+		private int[] ks;
+		private int numNeighbors;
+		private double maxEpsilon;
+		private double[][] coreDistances;
+
+		public CoreDistanceTask(int from, int to, int[] ks, int numNeighbors, double maxEpsilon,
+				double[][] coreDistances) {
+			this.from = from;
+			this.to = to;
+			this.ks = ks;
+			this.numNeighbors = numNeighbors;
+			this.maxEpsilon = maxEpsilon;
+			this.coreDistances = coreDistances;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from > PARALLEL_THRESHOLD) {
+				int mid = (this.from + this.to) >>> 1;
+				invokeAll(new CoreDistanceTask(this.from, mid, this.ks, this.numNeighbors, this.maxEpsilon,
+						this.coreDistances),
+						new CoreDistanceTask(mid, this.to, this.ks, this.numNeighbors, this.maxEpsilon,
+						this.coreDistances));
+				return;
+			}
+
+			int[] neighbors = new int[this.numNeighbors];
+			double[] distances = new double[this.numNeighbors];
+			for (int position = this.from; position < this.to; position++) {
+				int point = index[position];
+				int size = search(0, dataSet.length, point, this.numNeighbors, neighbors, distances, 0,
+						this.maxEpsilon);
+
+				//A single value of k only needs the largest distance, at the top of the heap:
+				boolean sorted = this.ks.length > 1;
+				if (sorted)
+					Arrays.sort(distances, 0, size);
+
+				for (int i = 0; i < this.ks.length; i++) {
+					int kNeighbors = this.ks[i]-1;
+					double coreDistance = 0;
+					if (kNeighbors > 0)
+						coreDistance = size < kNeighbors ? Double.MAX_VALUE : distances[sorted ? kNeighbors-1 : 0];
+					if (coreDistance > this.maxEpsilon)
+						coreDistance = Double.POSITIVE_INFINITY;
+					this.coreDistances[i][point] = coreDistance;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,621 @@
+package ca.ualberta.cs.hdbscanstar;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ca.ualberta.cs.distance.CosineSimilarity;
+import ca.ualberta.cs.distance.DistanceCalculator;
+import ca.ualberta.cs.distance.EuclideanDistance;
+import ca.ualberta.cs.distance.ManhattanDistance;
+import ca.ualberta.cs.distance.PearsonCorrelation;
+import ca.ualberta.cs.distance.SupremumDistance;
+
+/**
+ * A vantage-point tree over the rows of a data set, which only relies on the triangle inequality
+ * and so works for any DistanceCalculator that is a metric.  Each node picks a vantage point and
+ * splits the rest of its points at the median distance from it into an inner and an outer child.
+ * The range of distances from the vantage point to each child bounds the distance from any query
+ * point to that child.  Ranges of at most LEAF_SIZE points are leaves and are scanned linearly.
+ *
+ * The cosine and pearson distances, 1 - cos and 1 - r, are not metrics, but their square roots
+ * are proportional to the euclidean distance between normalized (and, for pearson, centered)
+ * rows.  The tree prunes with the square root for those two, which orders points the same way.
+ *
+ * The tree is used both for core distances and for the minimum spanning tree of mutual
+ * reachability distances, which is built with Boruvka's algorithm: in each round, every point
+ * searches the tree for its nearest point in another component, skipping subtrees that lie
+ * entirely in its own component or whose points all have larger core distances.
+ *
+ * The tree is implicit: the node covering positions [lo, hi) of the index array keeps its
+ * vantage point at lo, its inner child in [lo+1, mid) and its outer child in [mid, hi).
+ */
+public class VantagePointTree {
+
+	// ------------------------------ PRIVATE VARIABLES ------------------------------
+
+	private double[][] dataSet;
+	private DistanceCalculator distanceFunction;
+	private boolean squareRoot;		//Whether to prune with the square root of the distance
+	private int[] index;			//The data set row at each tree position
+	private double[] innerMax;		//Largest distance from the vantage point to its inner child
+	private double[] outerMin;		//Smallest distance from the vantage point to its outer child
+	private double[] outerMax;		//Largest distance from the vantage point to its outer child
+
+	//Used while building the minimum spanning tree, indexed by the first position of a subtree:
+	private double[] subtreeMinCore;
+	private int[] subtreeComponent;	//The component of every point in the subtree, or -1 if mixed
+
+	// ------------------------------ CONSTANTS ------------------------------
+
+	private static final int LEAF_SIZE = 16;
+	private static final int PARALLEL_THRESHOLD = 2048;
+
+	// ------------------------------ CONSTRUCTORS ------------------------------
+
+	/**
+	 * Builds a vantage-point tree over all rows of the data set.  The distance function must be a
+	 * metric, or one of the distances listed by supports().
+	 * @param dataSet A double[][] where index [i][j] indicates the jth attribute of data point i
+	 * @param distanceFunction A DistanceCalculator to compute distances between points
+	 */
+	public VantagePointTree(double[][] dataSet, DistanceCalculator distanceFunction) {
+		this.dataSet = dataSet;
+		this.distanceFunction = distanceFunction;
+		this.squareRoot = distanceFunction instanceof CosineSimilarity ||
+				distanceFunction instanceof PearsonCorrelation;
+		this.index = new int[dataSet.length];
+		this.innerMax = new double[dataSet.length];
+		this.outerMin = new double[dataSet.length];
+		this.outerMax = new double[dataSet.length];
+
+		for (int i = 0; i < dataSet.length; i++) {
+			this.index[i] = i;
+		}
+		this.build(0, dataSet.length, new double[dataSet.length], new Random(dataSet.length));
+	}
+
+	// ------------------------------ PUBLIC METHODS ------------------------------
+
+	/**
+	 * Returns true for the distances a VantagePointTree is known to search exactly: the euclidean,
+	 * manhattan and supremum metrics, and the cosine and pearson distances through their square
+	 * roots.
+	 * @param distanceFunction A DistanceCalculator
+	 * @return Whether HDBSCANStar should use a VantagePointTree for the distance function
+	 */
+	public static boolean supports(DistanceCalculator distanceFunction) {
+		return distanceFunction instanceof EuclideanDistance ||
+				distanceFunction instanceof ManhattanDistance ||
+				distanceFunction instanceof SupremumDistance ||
+				distanceFunction instanceof CosineSimilarity ||
+				distanceFunction instanceof PearsonCorrelation;
+	}
+
+
+	/**
+	 * Calculates the core distance of every point, which is the distance to its (k-1)th nearest
+	 * other point, the same as HDBSCANStar.calculateCoreDistances().  Points are searched on all
+	 * available processors.
+	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
+	 * @return An array of core distances
+	 */
+	public double[] calculateCoreDistances(int k) {
+		return this.calculateCoreDistances(k, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * Calculates the core distance of every point like calculateCoreDistances(int), without
+	 * searching farther than maxEpsilon from any point.  Points that do not have k-1 other points
+	 * within maxEpsilon get an infinite core distance.
+	 * @param k Each point's core distance will be it's distance to the kth nearest neighbor
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances
+	 */
+	public double[] calculateCoreDistances(int k, double maxEpsilon) {
+		return this.calculateCoreDistances(new int[] {k}, maxEpsilon)[0];
+	}
+
+
+	/**
+	 * Calculates the core distances of every point for several values of k in one search for the
+	 * neighbors of the largest k.  The core distance for each value is read from the same sorted
+	 * neighbor distances, so a sweep over minPts costs about as much as its largest value.
+	 * @param ks The values of k, in any order
+	 * @param maxEpsilon The largest core distance that is not infinite
+	 * @return An array of core distances for each value of k, in the order of ks
+	 */
+	public double[][] calculateCoreDistances(int[] ks, double maxEpsilon) {
+		final double[][] coreDistances = new double[ks.length][this.dataSet.length];
+		int numNeighbors = 0;
+		for (int k : ks) {
+			numNeighbors = Math.max(numNeighbors, k-1);
+		}
+
+		if (numNeighbors <= 0)
+			return coreDistances;
+
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new CoreDistanceTask(0, this.dataSet.length, ks, numNeighbors, maxEpsilon, coreDistances));
+		}
+		finally {
+			pool.shutdown();
+		}
+		return coreDistances;
+	}
+
+
+	/**
+	 * Constructs the minimum spanning tree of mutual reachability distances for the data set, in
+	 * the same form as HDBSCANStar.constructMST().  When several spanning trees have the same
+	 * weight, a different one than HDBSCANStar.constructMST() may be returned.
+	 * @param coreDistances An array of core distances for each data point
+	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
+	 * @return An MST for the data set using the mutual reachability distances
+	 */
+	public UndirectedGraph constructMST(double[] coreDistances, boolean selfEdges) {
+		return this.constructMST(coreDistances, selfEdges, Double.POSITIVE_INFINITY);
+	}
+
+
+	/**
+	 * Constructs the minimum spanning forest of mutual reachability distances up to maxEpsilon.
+	 * No edge longer than maxEpsilon is searched for, so points farther apart than that end up in
+	 * different trees of the forest, and points with an infinite core distance have no edges
+	 * other than their self edges.
+	 * @param coreDistances An array of core distances for each data point
+	 * @param selfEdges If each point should have an edge to itself with weight equal to core distance
+	 * @param maxEpsilon The largest mutual reachability distance of an edge
+	 * @return An MST, or a forest, for the data set using the mutual reachability distances
+	 */
+	public UndirectedGraph constructMST(double[] coreDistances, boolean selfEdges, double maxEpsilon) {
+		int numPoints = this.dataSet.length;
+		int selfEdgeCapacity = selfEdges ? numPoints : 0;
+		int[] verticesA = new int[Math.max(0, numPoints-1) + selfEdgeCapacity];
+		int[] verticesB = new int[verticesA.length];
+		double[] edgeWeights = new double[verticesA.length];
+		int numEdges = 0;
+
+		int[] parents = new int[numPoints];
+		int[] components = new int[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			parents[i] = i;
+		}
+
+		double[] bestWeights = new double[numPoints];
+		int[] bestA = new int[numPoints];
+		int[] bestB = new int[numPoints];
+
+		this.subtreeMinCore = new double[numPoints];
+		this.subtreeComponent = new int[numPoints];
+		if (numPoints > 0)
+			this.computeMinCore(0, numPoints, coreDistances);
+
+		while (numEdges < numPoints-1) {
+			for (int i = 0; i < numPoints; i++) {
+				components[i] = find(parents, i);
+			}
+			this.computeComponents(0, numPoints, components);
+			//Edges must be strictly lighter than the initial best weight:
+			Arrays.fill(bestWeights, maxEpsilon == Double.POSITIVE_INFINITY ? Double.MAX_VALUE : Math.nextUp(maxEpsilon));
+			Arrays.fill(bestB, -1);
+
+			//Find the lightest edge leaving each component, visiting nearby points one after another:
+			for (int position = 0; position < numPoints; position++) {
+				int point = this.index[position];
+				int component = components[point];
+				if (coreDistances[point] < bestWeights[component])
+					this.searchOutside(0, numPoints, point, component, components, coreDistances,
+							bestWeights, bestA, bestB);
+			}
+
+			//Merge the components along their lightest edges, skipping edges that close a cycle:
+			int edgesBefore = numEdges;
+			for (int component = 0; component < numPoints; component++) {
+				if (bestB[component] < 0)
+					continue;
+				int rootA = find(parents, bestA[component]);
+				int rootB = find(parents, bestB[component]);
+				if (rootA == rootB)
+					continue;
+				parents[rootA] = rootB;
+				verticesA[numEdges] = bestA[component];
+				verticesB[numEdges] = bestB[component];
+				edgeWeights[numEdges] = bestWeights[component];
+				numEdges++;
+			}
+			if (numEdges == edgesBefore)
+				break;
+		}
+
+		this.subtreeMinCore = null;
+		this.subtreeComponent = null;
+
+		//If necessary, attach self edges:
+		if (selfEdges) {
+			for (int vertex = 0; vertex < numPoints; vertex++) {
+				verticesA[numEdges] = vertex;
+				verticesB[numEdges] = vertex;
+				edgeWeights[numEdges] = coreDistances[vertex];
+				numEdges++;
+			}
+		}
+
+		//A forest has fewer edges than the arrays have room for:
+		if (numEdges < verticesA.length) {
+			verticesA = Arrays.copyOf(verticesA, numEdges);
+			verticesB = Arrays.copyOf(verticesB, numEdges);
+			edgeWeights = Arrays.copyOf(edgeWeights, numEdges);
+		}
+
+		return new UndirectedGraph(numPoints, verticesA, verticesB, edgeWeights);
+	}
+
+	// ------------------------------ PRIVATE METHODS ------------------------------
+
+	private double distance(int pointA, int pointB) {
+		return this.distanceFunction.computeDistance(this.dataSet[pointA], this.dataSet[pointB]);
+	}
+
+
+	/**
+	 * Maps a distance to the metric the tree prunes with.
+	 */
+	private double toMetric(double distance) {
+		return this.squareRoot ? Math.sqrt(Math.max(0, distance)) : distance;
+	}
+
+
+	private static boolean isLeaf(int lo, int hi) {
+		return hi - lo <= LEAF_SIZE;
+	}
+
+
+	private static int median(int lo, int hi) {
+		return lo + 1 + (hi - lo - 1)/2;
+	}
+
+
+	/**
+	 * Arranges positions [lo, hi) of the index into a vantage-point tree.  The scratch array holds
+	 * the distance of each position to the current vantage point.
+	 */
+	private void build(int lo, int hi, double[] scratch, Random random) {
+		if (isLeaf(lo, hi))
+			return;
+
+		swap(this.index, scratch, lo, lo + random.nextInt(hi - lo));
+		int vantagePoint = this.index[lo];
+		for (int i = lo+1; i < hi; i++) {
+			scratch[i] = this.toMetric(this.distance(vantagePoint, this.index[i]));
+		}
+
+		int mid = median(lo, hi);
+		select(this.index, scratch, lo+1, hi, mid);
+
+		double inner = 0;
+		for (int i = lo+1; i < mid; i++) {
+			inner = Math.max(inner, scratch[i]);
+		}
+		double outerLow = Double.MAX_VALUE;
+		double outerHigh = 0;
+		for (int i = mid; i < hi; i++) {
+			outerLow = Math.min(outerLow, scratch[i]);
+			outerHigh = Math.max(outerHigh, scratch[i]);
+		}
+		this.innerMax[lo] = inner;
+		this.outerMin[lo] = outerLow;
+		this.outerMax[lo] = outerHigh;
+
+		this.build(lo+1, mid, scratch, random);
+		this.build(mid, hi, scratch, random);
+	}
+
+
+	/**
+	 * Returns a lower bound, in the pruning metric, on the distance from a point at the given metric
+	 * distance from the vantage point at lo to any point of its inner child.
+	 */
+	private double innerBound(int lo, double metric) {
+		return Math.max(0, metric - this.innerMax[lo]);
+	}
+
+
+	private double outerBound(int lo, double metric) {
+		return Math.max(0, Math.max(this.outerMin[lo] - metric, metric - this.outerMax[lo]));
+	}
+
+
+	/**
+	 * Searches positions [lo, hi) for the nearest neighbors of a point, keeping them in a max-heap
+	 * of the given capacity in neighbors and distances.  Children farther than radius, given in the
+	 * pruning metric, are skipped.  Returns the new size of the heap.
+	 */
+	private int search(int lo, int hi, int point, int capacity, int[] neighbors, double[] distances,
+			int size, double radius) {
+
+		if (isLeaf(lo, hi)) {
+			for (int i = lo; i < hi; i++) {
+				if (this.index[i] != point)
+					size = offer(this.index[i], this.distance(point, this.index[i]), capacity,
+							neighbors, distances, size);
+			}
+			return size;
+		}
+
+		int vantagePoint = this.index[lo];
+		double distance = this.distance(point, vantagePoint);
+		if (vantagePoint != point)
+			size = offer(vantagePoint, distance, capacity, neighbors, distances, size);
+
+		double metric = this.toMetric(distance);
+		int mid = median(lo, hi);
+		double innerBound = this.innerBound(lo, metric);
+		double outerBound = this.outerBound(lo, metric);
+		boolean innerFirst = innerBound <= outerBound;
+
+		for (int child = 0; child < 2; child++) {
+			boolean inner = (child == 0) == innerFirst;
+			double bound = inner ? innerBound : outerBound;
+			if (bound > radius || (size == capacity && bound >= this.toMetric(distances[0])))
+				continue;
+			if (inner)
+				size = this.search(lo+1, mid, point, capacity, neighbors, distances, size, radius);
+			else
+				size = this.search(mid, hi, point, capacity, neighbors, distances, size, radius);
+		}
+		return size;
+	}
+
+
+	/**
+	 * Stores the smallest core distance of each subtree at its first position.
+	 */
+	private double computeMinCore(int lo, int hi, double[] coreDistances) {
+		double minCore = Double.MAX_VALUE;
+		if (isLeaf(lo, hi)) {
+			for (int i = lo; i < hi; i++) {
+				minCore = Math.min(minCore, coreDistances[this.index[i]]);
+			}
+		}
+		else {
+			int mid = median(lo, hi);
+			minCore = coreDistances[this.index[lo]];
+			if (lo+1 < mid)
+				minCore = Math.min(minCore, this.computeMinCore(lo+1, mid, coreDistances));
+			if (mid < hi)
+				minCore = Math.min(minCore, this.computeMinCore(mid, hi, coreDistances));
+		}
+		this.subtreeMinCore[lo] = minCore;
+		return minCore;
+	}
+
+
+	/**
+	 * Stores the component shared by all points of each subtree at its first position, or -1 if
+	 * the subtree spans several components.
+	 */
+	private int computeComponents(int lo, int hi, int[] components) {
+		int component = components[this.index[lo]];
+		if (isLeaf(lo, hi)) {
+			for (int i = lo+1; i < hi && component >= 0; i++) {
+				if (components[this.index[i]] != component)
+					component = -1;
+			}
+		}
+		else {
+			int mid = median(lo, hi);
+			if (lo+1 < mid && this.computeComponents(lo+1, mid, components) != component)
+				component = -1;
+			if (mid < hi && this.computeComponents(mid, hi, components) != component)
+				component = -1;
+		}
+		this.subtreeComponent[lo] = component;
+		return component;
+	}
+
+
+	/**
+	 * Searches positions [lo, hi) for the point outside the given component with the smallest
+	 * mutual reachability distance to a point, and records it as the lightest edge leaving the
+	 * component if it beats the best edge found so far.
+	 */
+	private void searchOutside(int lo, int hi, int point, int component, int[] components,
+			double[] coreDistances, double[] bestWeights, int[] bestA, int[] bestB) {
+
+		if (this.subtreeComponent[lo] == component)
+			return;
+		if (this.subtreeMinCore[lo] >= bestWeights[component] || coreDistances[point] >= bestWeights[component])
+			return;
+
+		if (isLeaf(lo, hi)) {
+			for (int i = lo; i < hi; i++) {
+				int other = this.index[i];
+				if (components[other] != component && coreDistances[other] < bestWeights[component])
+					this.offerEdge(point, other, this.distance(point, other), component, coreDistances,
+							bestWeights, bestA, bestB);
+			}
+			return;
+		}
+
+		int vantagePoint = this.index[lo];
+		double distance = this.distance(point, vantagePoint);
+		if (components[vantagePoint] != component)
+			this.offerEdge(point, vantagePoint, distance, component, coreDistances, bestWeights, bestA, bestB);
+
+		double metric = this.toMetric(distance);
+		int mid = median(lo, hi);
+		double innerBound = this.innerBound(lo, metric);
+		double outerBound = this.outerBound(lo, metric);
+		boolean innerFirst = innerBound <= outerBound;
+
+		for (int child = 0; child < 2; child++) {
+			boolean inner = (child == 0) == innerFirst;
+			int from = inner ? lo+1 : mid;
+			int to = inner ? mid : hi;
+			if (from >= to || (inner ? innerBound : outerBound) >= this.toMetric(bestWeights[component]))
+				continue;
+			this.searchOutside(from, to, point, component, components, coreDistances, bestWeights, bestA, bestB);
+		}
+	}
+
+
+	private void offerEdge(int point, int other, double distance, int component, double[] coreDistances,
+			double[] bestWeights, int[] bestA, int[] bestB) {
+
+		double mutualReachabilityDistance = Math.max(distance,
+				Math.max(coreDistances[point], coreDistances[other]));
+		if (mutualReachabilityDistance < bestWeights[component]) {
+			bestWeights[component] = mutualReachabilityDistance;
+			bestA[component] = point;
+			bestB[component] = other;
+		}
+	}
+
+
+	private static int find(int[] parents, int vertex) {
+		while (parents[vertex] != vertex) {
+			parents[vertex] = parents[parents[vertex]];
+			vertex = parents[vertex];
+		}
+		return vertex;
+	}
+
+
+	/**
+	 * Rearranges positions [lo, hi) so that the value at nth is the one it would be if the range
+	 * were sorted, with no greater values before it and no smaller values after it.
+	 */
+	private static void select(int[] index, double[] values, int lo, int hi, int nth) {
+		while (hi - lo > 1) {
+			double pivot = values[lo + (hi - lo)/2];
+			int lt = lo;
+			int i = lo;
+			int gt = hi;
+			while (i < gt) {
+				if (values[i] < pivot)
+					swap(index, values, lt++, i++);
+				else if (values[i] > pivot)
+					swap(index, values, i, --gt);
+				else
+					i++;
+			}
+			if (nth < lt)
+				hi = lt;
+			else if (nth >= gt)
+				lo = gt;
+			else
+				return;
+		}
+	}
+
+
+	/**
+	 * Offers a neighbor to a max-heap of the given capacity, returning the new heap size.
+	 */
+	private static int offer(int neighbor, double distance, int capacity, int[] neighbors,
+			double[] distances, int size) {
+
+		if (size < capacity) {
+			int i = size;
+			while (i > 0 && distances[(i-1)/2] < distance) {
+				neighbors[i] = neighbors[(i-1)/2];
+				distances[i] = distances[(i-1)/2];
+				i = (i-1)/2;
+			}
+			neighbors[i] = neighbor;
+			distances[i] = distance;
+			return size+1;
+		}
+		if (distance < distances[0]) {
+			neighbors[0] = neighbor;
+			distances[0] = distance;
+			int i = 0;
+			while (2*i + 1 < size) {
+				int child = 2*i + 1;
+				if (child+1 < size && distances[child+1] > distances[child])
+					child++;
+				if (distances[i] >= distances[child])
+					break;
+				swap(neighbors, distances, i, child);
+				i = child;
+			}
+		}
+		return size;
+	}
+
+
+	private static void swap(int[] index, double[] values, int i, int j) {
+		int point = index[i];
+		index[i] = index[j];
+		index[j] = point;
+		double value = values[i];
+		values[i] = values[j];
+		values[j] = value;
+	}
+
+	// ------------------------------ INNER CLASSES ------------------------------
+
+	/**
+	 * Computes the core distances of the points at a range of tree positions, splitting the range
+	 * in half until it is small enough to search sequentially.
+	 */
+	@SuppressWarnings("serial")
+	private class CoreDistanceTask extends RecursiveAction {
+
+		private int from;
+		private int to;
+		private int[] ks;
+		private int numNeighbors;
+		private double maxEpsilon;
+		private double[][] coreDistances;
+
+		public CoreDistanceTask(int from, int to, int[] ks, int numNeighbors, double maxEpsilon,
+				double[][] coreDistances) {
+			this.from = from;
+			this.to = to;
+			this.ks = ks;
+			this.numNeighbors = numNeighbors;
+			this.maxEpsilon = maxEpsilon;
+			this.coreDistances = coreDistances;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.to - this.from > PARALLEL_THRESHOLD) {
+				int mid = (this.from + this.to) >>> 1;
+				invokeAll(new CoreDistanceTask(this.from, mid, this.ks, this.numNeighbors, this.maxEpsilon,
+						this.coreDistances),
+						new CoreDistanceTask(mid, this.to, this.ks, this.numNeighbors, this.maxEpsilon,
+						this.coreDistances));
+				return;
+			}
+
+			int[] neighbors = new int[this.numNeighbors];
+			double[] distances = new double[this.numNeighbors];
+			double radius = toMetric(this.maxEpsilon);
+			for (int position = this.from; position < this.to; position++) {
+				int point = index[position];
+				int size = search(0, dataSet.length, point, this.numNeighbors, neighbors, distances, 0, radius);
+
+				//A single value of k only needs the largest distance, at the top of the heap:
+				boolean sorted = this.ks.length > 1;
+				if (sorted)
+					Arrays.sort(distances, 0, size);
+
+				for (int i = 0; i < this.ks.length; i++) {
+					int kNeighbors = this.ks[i]-1;
+					double coreDistance = 0;
+					if (kNeighbors > 0)
+						coreDistance = size < kNeighbors ? Double.MAX_VALUE : distances[sorted ? kNeighbors-1 : 0];
+					if (coreDistance > this.maxEpsilon)
+						coreDistance = Double.POSITIVE_INFINITY;
+					this.coreDistances[i][point] = coreDistance;
+				}
+			}
+		}
+	}
+}
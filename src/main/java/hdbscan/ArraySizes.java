@@ -0,0 +1,37 @@
+package main.java.hdbscan;
+
+/**
+ * Checks the lengths of arrays that hold a fixed number of entries per item,
+ * such as k neighbors per point, before the product can overflow an int.
+ */
+final class ArraySizes {
+
+	/**
+	 * The largest array length that virtual machines reliably allocate, some
+	 * reserving a few header words in the array.
+	 */
+	static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private ArraySizes() {
+	}
+
+	/**
+	 * Returns the length of an array holding <code>perItem</code> entries for
+	 * each of <code>items</code> items.
+	 *
+	 * @param items the number of items
+	 * @param perItem the number of entries per item
+	 * @param what what the entries are, for the error message
+	 * @throws IllegalArgumentException if the length is above
+	 *           {@link #MAX_ARRAY_SIZE}
+	 */
+	static int product(int items, int perItem, String what) {
+		long size = (long) items * perItem;
+		if (size > MAX_ARRAY_SIZE) {
+			throw new IllegalArgumentException(items + " points with " + perItem + " " + what
+					+ " each need " + size + " array entries, more than the largest array of "
+					+ MAX_ARRAY_SIZE);
+		}
+		return (int) size;
+	}
+}
@@ -0,0 +1,77 @@
+package main.java.hdbscan;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>A union-find over the integers <code>0..n-1</code> that several threads
+ * can use at once without locking.</p>
+ *
+ * <p>Roots are linked with a compare-and-set on the parent of the root with
+ * the larger index, so a parent always has a smaller index than its child
+ * and no cycle can form however unions interleave. A failed set means
+ * another thread linked that root first, and the union retries from the new
+ * roots. Finds halve paths with compare-and-set as well, which only ever
+ * points an element at one of its ancestors and so never changes the
+ * partition. There is no union by rank; path halving keeps trees shallow in
+ * practice.</p>
+ */
+final class ConcurrentUnionFind {
+
+	private final AtomicIntegerArray parent;
+
+	ConcurrentUnionFind(int n) {
+		this.parent = new AtomicIntegerArray(n);
+		for (int i = 0; i < n; i++) {
+			parent.set(i, i);
+		}
+	}
+
+	/**
+	 * Returns the root of the set holding an element.
+	 */
+	int find(int x) {
+		while (true) {
+			int p = parent.get(x);
+			if (p == x) {
+				return x;
+			}
+			int grandparent = parent.get(p);
+			if (p != grandparent) {
+				parent.compareAndSet(x, p, grandparent);
+			}
+			x = grandparent;
+		}
+	}
+
+	/**
+	 * Merges the sets holding two elements.
+	 *
+	 * @return true if they were in different sets, false if they were
+	 *         already joined, by this or another thread
+	 */
+	boolean union(int a, int b) {
+		while (true) {
+			a = find(a);
+			b = find(b);
+			if (a == b) {
+				return false;
+			}
+			if (a < b) {
+				int swap = a;
+				a = b;
+				b = swap;
+			}
+			if (parent.compareAndSet(a, a, b)) {
+				return true;
+			}
+		}
+	}
+
+	boolean isRoot(int x) {
+		return parent.get(x) == x;
+	}
+
+	int size() {
+		return parent.length();
+	}
+}
@@ -0,0 +1,59 @@
+package main.java.hdbscan;
+
+/**
+ * Accumulates how far approximate core distances are from exact ones.
+ * Relative errors are <code>(approximate - exact) / exact</code>, which is
+ * never negative for an approximate k-nearest-neighbor search.
+ */
+public class CoreDistanceDrift {
+
+	private int count;
+	private int changed;
+	private double maxRelativeError;
+	private double sumRelativeError;
+
+	/**
+	 * Records one pair of core distances for the same point.
+	 *
+	 * @param approximate the core distance found by the approximate search
+	 * @param exact the exact core distance
+	 */
+	public void add(double approximate, double exact) {
+		count++;
+		if (approximate == exact) {
+			return;
+		}
+		changed++;
+		double relativeError = exact > 0 ? Math.abs(approximate - exact) / exact : Double.POSITIVE_INFINITY;
+		maxRelativeError = Math.max(maxRelativeError, relativeError);
+		sumRelativeError += relativeError;
+	}
+
+	/**
+	 * Returns the number of points compared.
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the number of points whose core distance differs.
+	 */
+	public int getChanged() {
+		return changed;
+	}
+
+	public double getMaxRelativeError() {
+		return maxRelativeError;
+	}
+
+	public double getMeanRelativeError() {
+		return count == 0 ? 0 : sumRelativeError / count;
+	}
+
+	@Override
+	public String toString() {
+		return "CoreDistanceDrift [count=" + count + ", changed=" + changed + ", maxRelativeError="
+				+ maxRelativeError + ", meanRelativeError=" + getMeanRelativeError() + "]";
+	}
+}
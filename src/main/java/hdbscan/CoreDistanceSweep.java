@@ -0,0 +1,148 @@
+package main.java.hdbscan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * <p>Core distances of the nodes of a tree for several values of k, all read
+ * from one k-nearest-neighbor search at the largest value. The neighbors of
+ * every node are sorted by distance once and copied into flat arrays, so the
+ * core distance for any k up to the searched one is a single lookup. The
+ * sweep does not read the tree again; the tree keeps its neighbor heaps,
+ * which {@link NearestKdTree#insert} and {@link NearestKdTree#delete} still
+ * update, so the sweep holds a second copy of the neighbors.</p>
+ *
+ * <p>A sweep over minPts then costs one search plus one mutual reachability
+ * graph per value, see
+ * {@link HDBSCAN#calculateWeightedGraph(CoreDistanceSweep, int)}.</p>
+ */
+public final class CoreDistanceSweep {
+
+	private final int maxK;
+	private final double maxEpsilon;
+	private final int[] counts;
+	private final int[] neighbors;
+	private final double[] distances;
+
+	/**
+	 * Reads the sorted neighbors of every node of a tree whose neighbors
+	 * have been found, for example by {@link NearestKdTree#findKNN()}.
+	 *
+	 * @param tree the searched tree
+	 * @throws IllegalArgumentException if the k neighbors of all labels do
+	 *           not fit in one array
+	 */
+	public CoreDistanceSweep(NearestKdTree tree) {
+		ArrayList<KdNode> nodes = tree.getAllNodes();
+		int labelCount = tree.getLabelCount();
+		int k = nodes.isEmpty() ? 0 : nodes.get(0).getK();
+		this.maxK = k;
+		this.maxEpsilon = tree.getMaxEpsilon();
+		this.counts = new int[labelCount];
+		// Every label * k offset fits in an int once the whole array does
+		int length = ArraySizes.product(labelCount, k, "neighbors");
+		this.neighbors = new int[length];
+		this.distances = new double[length];
+		// Labels without a node, such as deleted ones, have no neighbors
+		Arrays.fill(counts, -1);
+
+		int[] order = new int[k];
+		for (KdNode node : nodes) {
+			NeighborHeap heap = node.getNeighbors();
+			int label = node.getLabel();
+			int size = heap.size();
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+			}
+			sortByDistance(heap, order, size);
+			for (int i = 0; i < size; i++) {
+				neighbors[label * k + i] = heap.getLabel(order[i]);
+				distances[label * k + i] = heap.getDistance(order[i]);
+			}
+			counts[label] = size;
+		}
+	}
+
+	/**
+	 * Insertion sort of heap positions by distance, which is quick for the
+	 * small k of a core distance.
+	 */
+	private static void sortByDistance(NeighborHeap heap, int[] order, int size) {
+		for (int i = 1; i < size; i++) {
+			int position = order[i];
+			double distance = heap.getDistance(position);
+			int j = i - 1;
+			while (j >= 0 && heap.getDistance(order[j]) > distance) {
+				order[j + 1] = order[j];
+				j--;
+			}
+			order[j + 1] = position;
+		}
+	}
+
+	/**
+	 * Returns the core distance of every label for a value of k, as
+	 * {@link KdNode#getCoreDistance()} would hold it after a search for k
+	 * neighbors: the distance to the k-th nearest neighbor, infinite if it
+	 * is beyond the tree's maxEpsilon, and NaN for labels without a node.
+	 *
+	 * @param k the number of neighbors, at most {@link #getMaxK()}
+	 * @return the core distances by label
+	 */
+	public double[] getCoreDistances(int k) {
+		if (k < 1 || k > maxK) {
+			throw new IllegalArgumentException("k must be between 1 and " + maxK + ": " + k);
+		}
+		double[] coreDistances = new double[counts.length];
+		for (int label = 0; label < counts.length; label++) {
+			coreDistances[label] = coreDistance(label, k);
+		}
+		return coreDistances;
+	}
+
+	private double coreDistance(int label, int k) {
+		int count = counts[label];
+		if (count < 0) {
+			return Double.NaN;
+		}
+		boolean hasKNeighbors = count >= k;
+		double coreDistance = count == 0 ? Double.MAX_VALUE : distances[label * maxK + Math.min(count, k) - 1];
+		if (maxEpsilon != Double.POSITIVE_INFINITY && (!hasKNeighbors || coreDistance > maxEpsilon)) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return coreDistance;
+	}
+
+	/**
+	 * Returns the number of neighbors found for a label, or -1 if the label
+	 * has no node.
+	 */
+	public int getNeighborCount(int label) {
+		return counts[label];
+	}
+
+	/**
+	 * Returns the label of the i-th nearest neighbor of a label.
+	 */
+	public int getNeighbor(int label, int i) {
+		return neighbors[label * maxK + i];
+	}
+
+	/**
+	 * Returns the distance to the i-th nearest neighbor of a label.
+	 */
+	public double getDistance(int label, int i) {
+		return distances[label * maxK + i];
+	}
+
+	/**
+	 * Returns the largest k the sweep has neighbors for.
+	 */
+	public int getMaxK() {
+		return maxK;
+	}
+
+	public int getLabelCount() {
+		return counts.length;
+	}
+}
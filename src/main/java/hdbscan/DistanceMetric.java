@@ -0,0 +1,37 @@
+package main.java.hdbscan;
+
+/**
+ * A distance between 2D points that a kd-tree can prune with. Besides the
+ * distance itself, a metric must give a lower bound on the distance from a
+ * point to anything on the far side of an axis-aligned split, which is what
+ * lets {@link NearestKdTree} skip subtrees.
+ */
+public interface DistanceMetric {
+
+	/**
+	 * Great-circle distance in km between lon/lat points in degrees.
+	 */
+	DistanceMetric HAVERSINE = new HaversineMetric();
+
+	/**
+	 * Straight-line distance between points in projected coordinates, in the
+	 * units of the coordinates.
+	 */
+	DistanceMetric EUCLIDEAN = new EuclideanMetric();
+
+	/**
+	 * Returns the distance between two points.
+	 */
+	double distance(double x1, double y1, double x2, double y2);
+
+	/**
+	 * Returns a lower bound on the distance from a point to any point on the
+	 * far side of a kd-tree split, that is the side the point is not on.
+	 *
+	 * @param x the x coordinate of the point
+	 * @param y the y coordinate of the point
+	 * @param axis 0 for a split on x, 1 for a split on y
+	 * @param split the split value
+	 */
+	double splitLowerBound(double x, double y, int axis, double split);
+}
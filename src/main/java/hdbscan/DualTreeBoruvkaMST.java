@@ -0,0 +1,455 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+
+/**
+ * <p>The exact minimum spanning tree of the complete mutual reachability
+ * graph of the points of a {@link NearestKdTree}, found by Bor&#367;vka
+ * rounds in which the cheapest edge leaving every component is searched
+ * with a dual-tree traversal, as {@link FlatKdTree#findKNNDualTree()} does
+ * for neighbors. The result is the same tree as
+ * {@link MutualReachabilityMST}, up to ties, without needing the k-NN
+ * edges.</p>
+ *
+ * <p>The traversal walks pairs of query and reference subtrees and drops a
+ * pair when it cannot hold an edge lighter than the best edge already found
+ * for every component in the query subtree. A pair is dropped when:</p>
+ *
+ * <ul>
+ * <li>all points of both subtrees are in the same component, or</li>
+ * <li>the larger of the distance between their boxes and the smallest
+ *     core distance on either side reaches that best edge, since the
+ *     mutual reachability distance of any pair of their points is at least
+ *     each of those.</li>
+ * </ul>
+ *
+ * <p>Nearby points share these decisions, so each round costs about as much
+ * as one k-NN search and the tree is found in O(log n) rounds. Subtree
+ * boxes and smallest core distances are computed once; the components of
+ * subtrees and the best edges are refreshed every round. When the tree
+ * still holds its neighbor lists, {@link MutualReachabilityMST} starts
+ * from those edges and is faster; this class only reads core distances,
+ * so it also works after a search that streamed its neighbors away.</p>
+ *
+ * <p>Points with an infinite core distance are left out, as are edges
+ * heavier than the tree's maxEpsilon, so the result is a forest when
+ * maxEpsilon is finite. The traversal runs on the calling thread and needs
+ * about 64 bytes per point on top of the tree.</p>
+ */
+public final class DualTreeBoruvkaMST implements SpanningForest {
+
+	private static final int DIMS = 2;
+
+	/**
+	 * The component of a subtree whose points belong to several components.
+	 */
+	private static final int MIXED = -1;
+
+	/**
+	 * The component of a subtree without any point that takes part.
+	 */
+	private static final int NONE = -2;
+
+	private final NearestKdTree tree;
+	private final double[] coords;
+	private final int numPoints;
+	private final int leafSize;
+	private final boolean haversine;
+	private final double[] coreDistances;
+	private final double limit;
+	private final double[] mins;
+	private final double[] maxs;
+	private final double[] minCores;
+	private final int[] subtreeComponents;
+	private final double[] bounds;
+	private final ConcurrentUnionFind components;
+	private final int[] component;
+	private final double[] bestWeight;
+	private final int[] bestFrom;
+	private final int[] bestTo;
+
+	private EdgeList forest;
+	private double weight;
+	private int componentCount;
+
+	/**
+	 * Finds the MST of the points of a bulk-loaded tree whose core distances
+	 * have been computed, for example by {@link NearestKdTree#findKNN()} or
+	 * {@link NearestKdTree#findCoreDistances(NeighborConsumer, java.util.concurrent.ForkJoinPool)}.
+	 *
+	 * @param tree the tree holding the points and their core distances, with
+	 *          the haversine or euclidean metric
+	 */
+	public DualTreeBoruvkaMST(NearestKdTree tree) {
+		if (tree.getMetric() != DistanceMetric.HAVERSINE && tree.getMetric() != DistanceMetric.EUCLIDEAN) {
+			throw new IllegalArgumentException("No box bound for the " + tree.getMetric() + " metric");
+		}
+		this.tree = tree;
+		this.coords = tree.getCoordinates();
+		this.numPoints = coords.length / DIMS;
+		this.leafSize = tree.getLeafSize();
+		this.haversine = tree.getMetric() == DistanceMetric.HAVERSINE;
+		this.coreDistances = new double[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			coreDistances[i] = tree.getNode(i).getCoreDistance();
+		}
+		this.limit = Math.nextUp(tree.getMaxEpsilon());
+		this.mins = new double[DIMS * numPoints];
+		this.maxs = new double[DIMS * numPoints];
+		this.minCores = new double[numPoints];
+		this.subtreeComponents = new int[numPoints];
+		this.bounds = new double[numPoints];
+		this.components = new ConcurrentUnionFind(numPoints);
+		this.component = new int[numPoints];
+		this.bestWeight = new double[numPoints];
+		this.bestFrom = new int[numPoints];
+		this.bestTo = new int[numPoints];
+		run();
+	}
+
+	private void run() {
+		EdgeList picked = new EdgeList();
+		if (numPoints > 0) {
+			computeBoxes(0, numPoints);
+		}
+		while (numPoints > 0) {
+			for (int p = 0; p < numPoints; p++) {
+				component[p] = components.find(p);
+			}
+			summarize(0, numPoints);
+			Arrays.fill(bestWeight, limit);
+			Arrays.fill(bestTo, -1);
+			Arrays.fill(bounds, limit);
+			traverse(0, numPoints, 0, numPoints, 0);
+
+			int before = picked.size();
+			for (int root = 0; root < numPoints; root++) {
+				if (bestTo[root] >= 0 && components.union(bestFrom[root], bestTo[root])) {
+					picked.add(bestFrom[root], bestTo[root], bestWeight[root]);
+				}
+			}
+			if (picked.size() == before) {
+				break;
+			}
+		}
+
+		forest = picked;
+		weight = 0;
+		for (int i = 0; i < picked.size(); i++) {
+			weight += picked.getWeight(i);
+		}
+		componentCount = numPoints - picked.size();
+	}
+
+	private boolean takesPart(int p) {
+		return coreDistances[p] < limit;
+	}
+
+	private boolean isLeaf(int lo, int hi) {
+		return hi - lo <= leafSize;
+	}
+
+	/**
+	 * Stores the box and the smallest core distance of every subtree of two
+	 * or more points at its median position, which is the split of an
+	 * interior subtree and a point of its own for a leaf bucket, so keys
+	 * never collide. A single point is its own box.
+	 */
+	private void computeBoxes(int lo, int hi) {
+		if (hi - lo < 2) {
+			return;
+		}
+		int key = (lo + hi) >>> 1;
+		if (isLeaf(lo, hi)) {
+			System.arraycopy(coords, DIMS * lo, mins, DIMS * key, DIMS);
+			System.arraycopy(coords, DIMS * lo, maxs, DIMS * key, DIMS);
+			minCores[key] = Double.POSITIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				include(key, coords, coords, i);
+				minCores[key] = Math.min(minCores[key], pointMinCore(i));
+			}
+			return;
+		}
+		computeBoxes(lo, key);
+		computeBoxes(key + 1, hi);
+		System.arraycopy(coords, DIMS * key, mins, DIMS * key, DIMS);
+		System.arraycopy(coords, DIMS * key, maxs, DIMS * key, DIMS);
+		double minCore = pointMinCore(key);
+		if (lo < key) {
+			includeRange(key, lo, key);
+			minCore = Math.min(minCore, minCore(lo, key));
+		}
+		if (key + 1 < hi) {
+			includeRange(key, key + 1, hi);
+			minCore = Math.min(minCore, minCore(key + 1, hi));
+		}
+		minCores[key] = minCore;
+	}
+
+	private void includeRange(int key, int lo, int hi) {
+		if (hi - lo == 1) {
+			include(key, coords, coords, lo);
+		} else {
+			include(key, mins, maxs, (lo + hi) >>> 1);
+		}
+	}
+
+	private void include(int key, double[] min, double[] max, int node) {
+		for (int d = 0; d < DIMS; d++) {
+			mins[DIMS * key + d] = Math.min(mins[DIMS * key + d], min[DIMS * node + d]);
+			maxs[DIMS * key + d] = Math.max(maxs[DIMS * key + d], max[DIMS * node + d]);
+		}
+	}
+
+	private double pointMinCore(int p) {
+		return takesPart(p) ? coreDistances[p] : Double.POSITIVE_INFINITY;
+	}
+
+	private double minCore(int lo, int hi) {
+		return hi - lo == 1 ? pointMinCore(lo) : minCores[(lo + hi) >>> 1];
+	}
+
+	/**
+	 * Stores the component shared by all points of every subtree of two or
+	 * more points, {@link #MIXED} or {@link #NONE}, under the same key as its
+	 * box.
+	 */
+	private int summarize(int lo, int hi) {
+		if (hi - lo == 1) {
+			return pointComponent(lo);
+		}
+		int key = (lo + hi) >>> 1;
+		int shared = NONE;
+		if (isLeaf(lo, hi)) {
+			for (int i = lo; i < hi; i++) {
+				shared = merge(shared, pointComponent(i));
+			}
+		} else {
+			shared = pointComponent(key);
+			if (lo < key) {
+				shared = merge(shared, summarize(lo, key));
+			}
+			if (key + 1 < hi) {
+				shared = merge(shared, summarize(key + 1, hi));
+			}
+		}
+		subtreeComponents[key] = shared;
+		return shared;
+	}
+
+	private int pointComponent(int p) {
+		return takesPart(p) ? component[p] : NONE;
+	}
+
+	private int subtreeComponent(int lo, int hi) {
+		return hi - lo == 1 ? pointComponent(lo) : subtreeComponents[(lo + hi) >>> 1];
+	}
+
+	private static int merge(int a, int b) {
+		if (a == NONE) {
+			return b;
+		}
+		if (b == NONE || a == b) {
+			return a;
+		}
+		return MIXED;
+	}
+
+	/**
+	 * Returns a weight that the best edge of every component in the query
+	 * subtree is already below or at, so that a pair of subtrees at least
+	 * this far apart cannot improve any of them. That is the best edge of
+	 * the component itself for a subtree within one component. Bounds of
+	 * other subtrees are refreshed as the traversal leaves them; best edges
+	 * only get lighter, so an older bound is still safe to prune with.
+	 */
+	private double bound(int lo, int hi) {
+		if (hi - lo == 1) {
+			return pointBound(lo);
+		}
+		int key = (lo + hi) >>> 1;
+		int shared = subtreeComponents[key];
+		if (shared >= 0) {
+			return bestWeight[shared];
+		}
+		return shared == NONE ? 0 : bounds[key];
+	}
+
+	private double pointBound(int p) {
+		return takesPart(p) ? bestWeight[component[p]] : 0;
+	}
+
+	/**
+	 * Returns a lower bound on the distance between any point of one subtree
+	 * and any point of another.
+	 */
+	private double boxDistance(int qlo, int qhi, int rlo, int rhi) {
+		double[] min1 = qhi - qlo == 1 ? coords : mins;
+		double[] max1 = qhi - qlo == 1 ? coords : maxs;
+		double[] min2 = rhi - rlo == 1 ? coords : mins;
+		double[] max2 = rhi - rlo == 1 ? coords : maxs;
+		int o1 = DIMS * (qhi - qlo == 1 ? qlo : (qlo + qhi) >>> 1);
+		int o2 = DIMS * (rhi - rlo == 1 ? rlo : (rlo + rhi) >>> 1);
+		if (haversine) {
+			return Haversine.boxLowerBound(min1[o1], min1[o1 + 1], max1[o1], max1[o1 + 1],
+					min2[o2], min2[o2 + 1], max2[o2], max2[o2 + 1]);
+		}
+		double sum = 0;
+		for (int d = 0; d < DIMS; d++) {
+			double gap = Math.max(0, Math.max(min2[o2 + d] - max1[o1 + d], min1[o1 + d] - max2[o2 + d]));
+			sum += gap * gap;
+		}
+		return Math.sqrt(sum);
+	}
+
+	/**
+	 * Finds lighter edges from the points of a query subtree to other
+	 * components in a reference subtree, given the distance between their
+	 * boxes. Both subtrees are non-empty.
+	 */
+	private void traverse(int qlo, int qhi, int rlo, int rhi, double boxDistance) {
+		int shared = subtreeComponent(qlo, qhi);
+		if (shared == NONE || shared != MIXED && shared == subtreeComponent(rlo, rhi)) {
+			return;
+		}
+		double minCore = Math.max(minCore(qlo, qhi), minCore(rlo, rhi));
+		if (Math.max(minCore, boxDistance) >= bound(qlo, qhi)) {
+			return;
+		}
+		boolean queryLeaf = isLeaf(qlo, qhi);
+		boolean referenceLeaf = isLeaf(rlo, rhi);
+
+		if (queryLeaf && referenceLeaf) {
+			scorePairs(qlo, qhi, rlo, rhi);
+		} else if (queryLeaf) {
+			splitReference(qlo, qhi, rlo, rhi);
+		} else {
+			int mid = (qlo + qhi) >>> 1;
+			splitReference(qlo, mid, rlo, rhi);
+			splitReference(mid, mid + 1, rlo, rhi);
+			splitReference(mid + 1, qhi, rlo, rhi);
+			updateBound(qlo, qhi);
+		}
+	}
+
+	/**
+	 * Visits the three parts of the reference subtree, closest to the query
+	 * subtree first, so that best edges get lighter before the far parts are
+	 * tested. Parts are ordered by the distance between boxes alone: close
+	 * to the query most parts share the same smallest core distance, which
+	 * would leave the order to chance.
+	 */
+	private void splitReference(int qlo, int qhi, int rlo, int rhi) {
+		if (qlo >= qhi) {
+			return;
+		}
+		if (isLeaf(rlo, rhi)) {
+			traverse(qlo, qhi, rlo, rhi, boxDistance(qlo, qhi, rlo, rhi));
+			return;
+		}
+		int mid = (rlo + rhi) >>> 1;
+		int[] from = { rlo, mid, mid + 1 };
+		int[] to = { mid, mid + 1, rhi };
+		double[] lower = new double[3];
+		for (int i = 0; i < 3; i++) {
+			lower[i] = from[i] < to[i] ? boxDistance(qlo, qhi, from[i], to[i]) : Double.POSITIVE_INFINITY;
+		}
+		for (int visited = 0; visited < 3; visited++) {
+			int best = -1;
+			for (int i = 0; i < 3; i++) {
+				if (lower[i] >= 0 && (best < 0 || lower[i] < lower[best])) {
+					best = i;
+				}
+			}
+			// Only an empty part is infinitely far
+			if (lower[best] == Double.POSITIVE_INFINITY) {
+				return;
+			}
+			double boxDistance = lower[best];
+			lower[best] = -1;
+			traverse(qlo, qhi, from[best], to[best], boxDistance);
+		}
+	}
+
+	private void scorePairs(int qlo, int qhi, int rlo, int rhi) {
+		for (int q = qlo; q < qhi; q++) {
+			if (!takesPart(q)) {
+				continue;
+			}
+			int own = component[q];
+			double core = coreDistances[q];
+			for (int r = rlo; r < rhi; r++) {
+				// Every edge of q weighs at least its core distance
+				if (core >= bestWeight[own]) {
+					break;
+				}
+				if (r == q || !takesPart(r) || component[r] == own) {
+					continue;
+				}
+				double w = Math.max(core, coreDistances[r]);
+				if (w >= bestWeight[own]) {
+					continue;
+				}
+				w = Math.max(w, tree.distance(q, r));
+				if (w < bestWeight[own]) {
+					bestWeight[own] = w;
+					bestFrom[own] = q;
+					bestTo[own] = r;
+				}
+			}
+		}
+		if (qhi - qlo > 1) {
+			double bound = 0;
+			for (int q = qlo; q < qhi; q++) {
+				bound = Math.max(bound, pointBound(q));
+			}
+			bounds[(qlo + qhi) >>> 1] = bound;
+		}
+	}
+
+	private void updateBound(int lo, int hi) {
+		int mid = (lo + hi) >>> 1;
+		double bound = pointBound(mid);
+		if (lo < mid) {
+			bound = Math.max(bound, bound(lo, mid));
+		}
+		if (mid + 1 < hi) {
+			bound = Math.max(bound, bound(mid + 1, hi));
+		}
+		bounds[mid] = bound;
+	}
+
+	/**
+	 * Returns the edges of the tree, or of the forest if some points cannot
+	 * be joined within maxEpsilon, in the order they were found.
+	 */
+	@Override
+	public EdgeList edges() {
+		return forest;
+	}
+
+	@Override
+	public double weight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of trees in the forest, counting every point left
+	 * out for its infinite core distance, which is 1 when all points are
+	 * joined.
+	 */
+	@Override
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * Returns the tree of the forest a point belongs to, as the smallest
+	 * label in that tree. A point left out for its infinite core distance is
+	 * a tree of its own.
+	 */
+	@Override
+	public int getComponent(int v) {
+		return components.find(v);
+	}
+}
@@ -0,0 +1,216 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A growable list of weighted edges between labelled points, kept in
+ * parallel primitive arrays at 16 bytes per edge rather than as an object per
+ * edge.</p>
+ *
+ * <p>As a {@link NeighborConsumer} it records an edge from each point to each
+ * of its nearest neighbors, weighted by their distance, so that a k-NN search
+ * can hand its results over point by point instead of keeping them in the
+ * tree. Searches on several threads call {@link #accept} concurrently: each
+ * call takes the shared read lock of a read-write lock, reserves its slots
+ * with a compare-and-set on the size and writes them. Growing the arrays
+ * takes the exclusive write lock, which waits for the writes in progress; a
+ * list created with room for all the neighbors never grows during a
+ * search.</p>
+ *
+ * <p>{@link #add} is the plain append of the single-threaded graph builders
+ * and takes no lock. It must not run at the same time as another append.</p>
+ *
+ * <p>{@link #removeDuplicates()} keeps one edge per pair of points, looked up
+ * by the two labels packed into a <code>long</code> in an open-addressing
+ * table of <code>int</code>s, so the k-NN edges found from both ends are
+ * merged without boxing an edge per entry.</p>
+ */
+public final class EdgeList implements NeighborConsumer {
+
+	private static final int TABLE_CHUNK_BITS = 30;
+	private static final int TABLE_CHUNK_MASK = (1 << TABLE_CHUNK_BITS) - 1;
+
+	private int[] first;
+	private int[] second;
+	private double[] weights;
+	private final AtomicInteger size = new AtomicInteger();
+	// Concurrent appends hold the read lock while they write, growing holds
+	// the write lock
+	private final ReadWriteLock arrays = new ReentrantReadWriteLock();
+
+	public EdgeList() {
+		this(16);
+	}
+
+	public EdgeList(int capacity) {
+		capacity = Math.max(1, capacity);
+		this.first = new int[capacity];
+		this.second = new int[capacity];
+		this.weights = new double[capacity];
+	}
+
+	/**
+	 * Appends an edge. Not safe to call from several threads, or while a
+	 * search streams neighbors into the list.
+	 */
+	public void add(int label1, int label2, double weight) {
+		int at = size.get();
+		if (at == first.length) {
+			ensureCapacity(at + 1L);
+		}
+		first[at] = label1;
+		second[at] = label2;
+		weights[at] = weight;
+		size.lazySet(at + 1);
+	}
+
+	/**
+	 * Appends an edge from the point to each of its neighbors, weighted by the
+	 * distance to the neighbor. Safe to call from several threads at once.
+	 */
+	@Override
+	public void accept(int label, NeighborHeap neighbors) {
+		int count = neighbors.size();
+		int at = reserve(count);
+		try {
+			for (int i = 0; i < count; i++) {
+				first[at + i] = label;
+				second[at + i] = neighbors.getLabel(i);
+				weights[at + i] = neighbors.getDistance(i);
+			}
+		} finally {
+			arrays.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reserves room for the given number of edges and returns the index of the
+	 * first, holding the read lock so that the arrays are not replaced until
+	 * the caller has written them and released it.
+	 */
+	private int reserve(int count) {
+		while (true) {
+			arrays.readLock().lock();
+			int at = size.get();
+			if ((long) at + count <= first.length) {
+				if (size.compareAndSet(at, at + count)) {
+					return at;
+				}
+				arrays.readLock().unlock();
+				continue;
+			}
+			arrays.readLock().unlock();
+			arrays.writeLock().lock();
+			try {
+				ensureCapacity((long) size.get() + count);
+			} finally {
+				arrays.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Grows the arrays by half, so that appending stays amortized constant
+	 * time up to the largest array size.
+	 */
+	private void ensureCapacity(long capacity) {
+		if (capacity > first.length) {
+			if (capacity > ArraySizes.MAX_ARRAY_SIZE) {
+				throw new IllegalStateException("An EdgeList holds at most " + ArraySizes.MAX_ARRAY_SIZE
+						+ " edges, " + capacity + " were added");
+			}
+			int newCapacity = (int) Math.min(ArraySizes.MAX_ARRAY_SIZE,
+					Math.max(capacity, first.length + (long) (first.length >> 1)));
+			first = Arrays.copyOf(first, newCapacity);
+			second = Arrays.copyOf(second, newCapacity);
+			weights = Arrays.copyOf(weights, newCapacity);
+		}
+	}
+
+	/**
+	 * Keeps one edge for each unordered pair of labels, the first one added
+	 * with the smallest weight, and stores it with the smaller label first.
+	 * Edges keep the order in which their pair was first added.
+	 */
+	public void removeDuplicates() {
+		arrays.writeLock().lock();
+		try {
+			removeDuplicates(size.get());
+		} finally {
+			arrays.writeLock().unlock();
+		}
+	}
+
+	private void removeDuplicates(int size) {
+		// A power of two at least 1.5 times the number of edges keeps the
+		// table at most two thirds full. Above 2^30 slots the table is split
+		// into chunks of 2^30, so any list that fits in arrays can be deduped
+		long capacity = Long.highestOneBit(Math.max(1, size + (long) (size >>> 1))) << 1;
+		int[][] slots = new int[(int) ((capacity - 1 >>> TABLE_CHUNK_BITS) + 1)][];
+		for (int c = 0; c < slots.length; c++) {
+			slots[c] = new int[(int) Math.min(capacity - ((long) c << TABLE_CHUNK_BITS), 1 << TABLE_CHUNK_BITS)];
+		}
+		long mask = capacity - 1;
+		int unique = 0;
+
+		for (int i = 0; i < size; i++) {
+			int label1 = Math.min(first[i], second[i]);
+			int label2 = Math.max(first[i], second[i]);
+			long key = (long) label1 << 32 | (label2 & 0xFFFFFFFFL);
+			long slot = mix(key) & mask;
+			while (true) {
+				int[] chunk = slots[(int) (slot >>> TABLE_CHUNK_BITS)];
+				int at = (int) slot & TABLE_CHUNK_MASK;
+				int u = chunk[at] - 1;
+				if (u < 0) {
+					chunk[at] = unique + 1;
+					first[unique] = label1;
+					second[unique] = label2;
+					weights[unique] = weights[i];
+					unique++;
+					break;
+				}
+				if (first[u] == label1 && second[u] == label2) {
+					if (weights[i] < weights[u]) {
+						weights[u] = weights[i];
+					}
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		this.size.set(unique);
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, as in {@link SnappedPoints}.
+	 */
+	private static long mix(long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public int size() {
+		return size.get();
+	}
+
+	public int getFirst(int i) {
+		return first[i];
+	}
+
+	public int getSecond(int i) {
+		return second[i];
+	}
+
+	public double getWeight(int i) {
+		return weights[i];
+	}
+}
@@ -0,0 +1,26 @@
+package main.java.hdbscan;
+
+/**
+ * The planar Euclidean distance, for points that are already projected. It
+ * needs no trigonometry, and the distance to a split is simply the
+ * difference on the split axis.
+ */
+public class EuclideanMetric implements DistanceMetric {
+
+	@Override
+	public double distance(double x1, double y1, double x2, double y2) {
+		double dx = x1 - x2;
+		double dy = y1 - y2;
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	@Override
+	public double splitLowerBound(double x, double y, int axis, double split) {
+		return Math.abs((axis == 0 ? x : y) - split);
+	}
+
+	@Override
+	public String toString() {
+		return "Euclidean";
+	}
+}
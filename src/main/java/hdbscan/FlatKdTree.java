@@ -0,0 +1,734 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * <p>A kd-tree over lon/lat points stored as flat primitive arrays instead of
+ * one {@link KdNode} object per point. It offers the same range query and
+ * k-nearest-neighbor search as {@link NearestKdTree}.</p>
+ *
+ * <p>The tree is implicit. The coordinates are permuted so that the node
+ * covering positions <code>[lo, hi)</code> stores its point at
+ * <code>mid = (lo + hi) / 2</code>, its left subtree in <code>[lo, mid)</code>
+ * and its right subtree in <code>[mid + 1, hi)</code>. No child pointers are
+ * stored, and the points of a subtree are contiguous in memory. Nodes at even
+ * depths split on longitude and nodes at odd depths split on latitude.</p>
+ *
+ * <p>In spherical mode each point is instead stored as the 3D unit vector
+ * <code>(cos(lat) cos(lon), cos(lat) sin(lon), sin(lat))</code> and nodes
+ * split on x, y and z in turn. The search then uses the straight-line chord
+ * between unit vectors, which grows monotonically with great-circle
+ * distance, so neighbors are the same as under haversine. The distance to a
+ * splitting plane is a tight lower bound on the chord at any latitude, and
+ * needs no trigonometry. Core distances are converted back to km once the
+ * search is done.</p>
+ *
+ * <p>Each point has a label, which is its index among the unique input points.
+ * The tree keeps 56 bytes per point, or 40 in spherical mode: interleaved
+ * coordinates, the label at each tree position, the tree position of each
+ * label and the core distance, plus a {@link HaversineKernel} indexed by
+ * tree position outside spherical mode. {@link #findKNN()} adds 4k bytes per point for
+ * the neighbor labels.</p>
+ */
+public class FlatKdTree {
+
+	private final int k;
+	private final double tolerance;
+	private final boolean spherical;
+	private final int dims;
+	private final int numberOfPoints;
+	private final double[] coords;
+	private final int[] labels;
+	private final int[] positions;
+	private final HaversineKernel kernel;
+	private final double[] coreDistances;
+	private int[] neighbors;
+
+	/**
+	 * Creates a tree over the unique points of the given array.
+	 *
+	 * @param points the points to index, as lon/lat in degrees
+	 * @param k the number of neighbors to find for each point
+	 */
+	public FlatKdTree(Coordinate[] points, int k) {
+		this(points, k, Double.NaN);
+	}
+
+	/**
+	 * Creates a tree over the points of the given array after snapping them to
+	 * a grid with the given tolerance and removing duplicates. The input
+	 * array is not modified.
+	 *
+	 * @param points the points to index, as lon/lat in degrees
+	 * @param k the number of neighbors to find for each point
+	 * @param tol the snap tolerance, or NaN to keep points as given
+	 */
+	public FlatKdTree(Coordinate[] points, int k, double tol) {
+		this(points, k, tol, false);
+	}
+
+	/**
+	 * Creates a tree over the points of the given array after snapping them to
+	 * a grid with the given tolerance and removing duplicates. Snapping and
+	 * duplicate removal happen on lon/lat in both modes.
+	 *
+	 * @param points the points to index, as lon/lat in degrees
+	 * @param k the number of neighbors to find for each point
+	 * @param tol the snap tolerance, or NaN to keep points as given
+	 * @param spherical whether to index the points as unit vectors
+	 * @throws IllegalArgumentException if the coordinates or the k neighbors
+	 *           of all unique points do not fit in one array
+	 */
+	public FlatKdTree(Coordinate[] points, int k, double tol, boolean spherical) {
+		this.k = k;
+		this.tolerance = tol;
+		this.spherical = spherical;
+		this.dims = spherical ? 3 : 2;
+
+		SnappedPoints uniquePoints = SnappedPoints.snap(points, tolerance);
+
+		this.numberOfPoints = uniquePoints.size();
+		// Neighbors are stored at label * k, so every offset fits in an int
+		// once the whole array does
+		ArraySizes.product(numberOfPoints, k, "neighbors");
+		this.coords = new double[ArraySizes.product(numberOfPoints, dims, "coordinates")];
+		this.labels = new int[numberOfPoints];
+		this.positions = new int[numberOfPoints];
+		this.coreDistances = new double[numberOfPoints];
+
+		for (int i = 0; i < numberOfPoints; i++) {
+			if (spherical) {
+				double lon = Math.toRadians(uniquePoints.getX(i));
+				double lat = Math.toRadians(uniquePoints.getY(i));
+				coords[3 * i] = Math.cos(lat) * Math.cos(lon);
+				coords[3 * i + 1] = Math.cos(lat) * Math.sin(lon);
+				coords[3 * i + 2] = Math.sin(lat);
+			} else {
+				coords[2 * i] = uniquePoints.getX(i);
+				coords[2 * i + 1] = uniquePoints.getY(i);
+			}
+			labels[i] = i;
+		}
+		Arrays.fill(coreDistances, Double.MAX_VALUE);
+
+		KdTreeLayout.buildParallel(coords, dims, labels, 0);
+		for (int pos = 0; pos < numberOfPoints; pos++) {
+			positions[labels[pos]] = pos;
+		}
+		if (spherical) {
+			this.kernel = null;
+		} else {
+			this.kernel = new HaversineKernel(numberOfPoints);
+			for (int pos = 0; pos < numberOfPoints; pos++) {
+				kernel.set(pos, coords[2 * pos], coords[2 * pos + 1]);
+			}
+		}
+	}
+
+	/**
+	 * Performs a range search of the points in the index.
+	 *
+	 * @param queryEnv the range rectangle to query
+	 * @return the labels of the points found
+	 */
+	public int[] query(Envelope queryEnv) {
+		double[] min;
+		double[] max;
+		if (spherical) {
+			min = new double[3];
+			max = new double[3];
+			unitVectorBounds(queryEnv, min, max);
+		} else {
+			min = new double[] { queryEnv.getMinX(), queryEnv.getMinY() };
+			max = new double[] { queryEnv.getMaxX(), queryEnv.getMaxY() };
+		}
+		IntArrayList result = new IntArrayList();
+		queryNode(0, numberOfPoints, 0, min, max, queryEnv, result);
+		return result.toArray();
+	}
+
+	private void queryNode(int lo, int hi, int depth, double[] min, double[] max, Envelope queryEnv,
+			IntArrayList result) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		int axis = depth % dims;
+		double discriminant = coords[dims * mid + axis];
+
+		if (min[axis] <= discriminant) {
+			queryNode(lo, mid, depth + 1, min, max, queryEnv, result);
+		}
+		if (queryEnv.contains(lon(mid), lat(mid))) {
+			result.add(labels[mid]);
+		}
+		if (discriminant <= max[axis]) {
+			queryNode(mid + 1, hi, depth + 1, min, max, queryEnv, result);
+		}
+	}
+
+	/**
+	 * Computes the axis-aligned box of the unit vectors of all points inside a
+	 * lon/lat envelope, widened slightly so that points on the edge of the
+	 * envelope are not lost to rounding.
+	 */
+	private static void unitVectorBounds(Envelope env, double[] min, double[] max) {
+		double minLon = Math.toRadians(env.getMinX());
+		double maxLon = Math.toRadians(env.getMaxX());
+		double minLat = Math.toRadians(Math.max(-90, env.getMinY()));
+		double maxLat = Math.toRadians(Math.min(90, env.getMaxY()));
+
+		double minCosLat = Math.min(Math.cos(minLat), Math.cos(maxLat));
+		double maxCosLat = minLat <= 0 && maxLat >= 0 ? 1 : Math.max(Math.cos(minLat), Math.cos(maxLat));
+		double minCosLon = minLon <= -Math.PI || maxLon >= Math.PI ? -1 : Math.min(Math.cos(minLon), Math.cos(maxLon));
+		double maxCosLon = minLon <= 0 && maxLon >= 0 ? 1 : Math.max(Math.cos(minLon), Math.cos(maxLon));
+		double minSinLon = minLon <= -Math.PI / 2 && maxLon >= -Math.PI / 2 ? -1
+				: Math.min(Math.sin(minLon), Math.sin(maxLon));
+		double maxSinLon = minLon <= Math.PI / 2 && maxLon >= Math.PI / 2 ? 1
+				: Math.max(Math.sin(minLon), Math.sin(maxLon));
+
+		double slack = 1e-12;
+		min[0] = Math.min(minCosLat * minCosLon, maxCosLat * minCosLon) - slack;
+		max[0] = Math.max(minCosLat * maxCosLon, maxCosLat * maxCosLon) + slack;
+		min[1] = Math.min(minCosLat * minSinLon, maxCosLat * minSinLon) - slack;
+		max[1] = Math.max(minCosLat * maxSinLon, maxCosLat * maxSinLon) + slack;
+		min[2] = Math.sin(minLat) - slack;
+		max[2] = Math.sin(maxLat) + slack;
+	}
+
+	/**
+	 * Finds the k nearest neighbors of every point on the calling thread.
+	 */
+	public void findKNN() {
+		allocateNeighbors();
+		findKNN(0, numberOfPoints, new NeighborHeap(k));
+	}
+
+	/**
+	 * Finds the k nearest neighbors of every point, splitting the points
+	 * across the threads of the given pool. The result is identical to
+	 * {@link #findKNN()}.
+	 *
+	 * @param pool the fork-join pool to run the searches on
+	 */
+	public void findKNN(ForkJoinPool pool) {
+		allocateNeighbors();
+		pool.invoke(new FindKNNTask(this, 0, numberOfPoints));
+	}
+
+	private void allocateNeighbors() {
+		if (neighbors == null) {
+			neighbors = new int[ArraySizes.product(numberOfPoints, k, "neighbors")];
+		}
+	}
+
+	private void findKNN(int fromLabel, int toLabel, NeighborHeap heap) {
+		for (int label = fromLabel; label < toLabel; label++) {
+			heap.clear();
+			int pos = positions[label];
+			search(0, numberOfPoints, 0, dims * pos, label, heap);
+
+			int offset = label * k;
+			for (int i = 0; i < k; i++) {
+				neighbors[offset + i] = i < heap.size() ? heap.getLabel(i) : -1;
+			}
+			coreDistances[label] = toKilometres(heap.maxDistance());
+		}
+	}
+
+	/**
+	 * Exact k-nearest-neighbor search. Descends to the side of each split
+	 * that contains the query point first, and only visits the other side if
+	 * the heap is not yet full or the closest possible point on that side
+	 * could beat the current k-th distance. The query point is given by the
+	 * offset of its first coordinate in <code>coords</code>.
+	 */
+	private void search(int lo, int hi, int depth, int query, int self, NeighborHeap heap) {
+		if (lo >= hi) {
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		int axis = depth % dims;
+		if (labels[mid] != self) {
+			heap.offerNew(labels[mid], distance(query, mid));
+		}
+		double split = coords[dims * mid + axis];
+		boolean nearLeft = coords[query + axis] < split;
+		if (nearLeft) {
+			search(lo, mid, depth + 1, query, self, heap);
+		} else {
+			search(mid + 1, hi, depth + 1, query, self, heap);
+		}
+		if (heap.isFull() && splitLowerBound(query, axis, split) >= heap.maxDistance()) {
+			return;
+		}
+		if (nearLeft) {
+			search(mid + 1, hi, depth + 1, query, self, heap);
+		} else {
+			search(lo, mid, depth + 1, query, self, heap);
+		}
+	}
+
+	/**
+	 * Returns the search distance from the point whose coordinates start at
+	 * offset <code>query</code> to the point at tree position <code>pos</code>:
+	 * the chord in spherical mode, the haversine distance in km otherwise.
+	 */
+	private double distance(int query, int pos) {
+		if (!spherical) {
+			return kernel.distance(query >> 1, pos);
+		}
+		double dx = coords[query] - coords[3 * pos];
+		double dy = coords[query + 1] - coords[3 * pos + 1];
+		double dz = coords[query + 2] - coords[3 * pos + 2];
+		return Math.sqrt(dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Computes the search distances from the point at tree position
+	 * <code>query</code> to the points at positions <code>[from, to)</code>
+	 * into <code>out</code>.
+	 */
+	private void distances(int query, int from, int to, double[] out) {
+		if (!spherical) {
+			kernel.distances(query, from, to, out);
+			return;
+		}
+		double qx = coords[3 * query];
+		double qy = coords[3 * query + 1];
+		double qz = coords[3 * query + 2];
+		for (int i = 0; i < to - from; i++) {
+			double dx = qx - coords[3 * (from + i)];
+			double dy = qy - coords[3 * (from + i) + 1];
+			double dz = qz - coords[3 * (from + i) + 2];
+			out[i] = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	private double splitLowerBound(int query, int axis, double split) {
+		if (!spherical) {
+			return Haversine.splitLowerBound(coords[query], coords[query + 1], axis, split);
+		}
+		return Math.abs(coords[query + axis] - split);
+	}
+
+	/**
+	 * Converts a search distance to km. In spherical mode a chord c between
+	 * unit vectors spans the great-circle angle <code>2 asin(c / 2)</code>.
+	 */
+	private double toKilometres(double distance) {
+		if (!spherical || distance == Double.MAX_VALUE) {
+			return distance;
+		}
+		return 2 * Haversine.EARTH_RADIUS * Math.asin(Math.min(1, distance / 2));
+	}
+
+	private double lon(int pos) {
+		if (!spherical) {
+			return coords[2 * pos];
+		}
+		return Math.toDegrees(Math.atan2(coords[3 * pos + 1], coords[3 * pos]));
+	}
+
+	private double lat(int pos) {
+		if (!spherical) {
+			return coords[2 * pos + 1];
+		}
+		return Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, coords[3 * pos + 2]))));
+	}
+
+	/**
+	 * <p>Finds the k nearest neighbors of every point with a dual-tree
+	 * traversal. Instead of searching for one query point at a time, the
+	 * traversal walks pairs of query and reference subtrees of this tree and
+	 * discards a whole pair when the boxes of the two subtrees are further
+	 * apart than the largest k-th distance found so far for any point of the
+	 * query subtree. Nearby query points therefore share their pruning
+	 * decisions. Core distances are exact and equal those of
+	 * {@link #findKNN()}.</p>
+	 *
+	 * <p>The traversal runs on the calling thread and temporarily needs
+	 * another 56 + 8k bytes per point, or 72 + 8k in spherical mode, for
+	 * subtree boxes, bounds and neighbor distances.</p>
+	 */
+	public void findKNNDualTree() {
+		allocateNeighbors();
+		new DualTreeSearch(this).run();
+	}
+
+	/**
+	 * State of one dual-tree traversal. A subtree is identified by its range
+	 * of tree positions; ranges of two or more points are implicit kd-tree
+	 * subtrees and their boxes and bounds are stored at the median position.
+	 * An interior subtree is split into its left subtree, the single point at
+	 * its median and its right subtree, so every query/reference pair of
+	 * points is either scored or pruned exactly once.
+	 */
+	private static class DualTreeSearch {
+		private static final int LEAF_SIZE = 8;
+
+		private final FlatKdTree tree;
+		private final double[] coords;
+		private final int[] labels;
+		private final int k;
+		private final int dims;
+		private final double[] mins;
+		private final double[] maxs;
+		private final double[] bounds;
+		private final double[] nearest;
+		private final double[] diameters;
+		private final double[] distances;
+		private final int[] sizes;
+		private final double[] scores = new double[LEAF_SIZE];
+
+		DualTreeSearch(FlatKdTree tree) {
+			int n = tree.numberOfPoints;
+			this.tree = tree;
+			this.coords = tree.coords;
+			this.labels = tree.labels;
+			this.k = tree.k;
+			this.dims = tree.dims;
+			this.mins = new double[dims * n];
+			this.maxs = new double[dims * n];
+			this.bounds = new double[n];
+			this.nearest = new double[n];
+			this.diameters = new double[n];
+			this.distances = new double[ArraySizes.product(n, k, "neighbors")];
+			this.sizes = new int[n];
+		}
+
+		void run() {
+			int n = tree.numberOfPoints;
+			if (n == 0) {
+				return;
+			}
+			computeBoxes(0, n);
+			Arrays.fill(bounds, Double.MAX_VALUE);
+			Arrays.fill(nearest, Double.MAX_VALUE);
+			traverse(0, n, 0, n);
+
+			for (int label = 0; label < n; label++) {
+				int offset = label * k;
+				for (int i = sizes[label]; i < k; i++) {
+					tree.neighbors[offset + i] = -1;
+				}
+				tree.coreDistances[label] = sizes[label] == 0 ? Double.MAX_VALUE : tree.toKilometres(distances[offset]);
+			}
+		}
+
+		private void computeBoxes(int lo, int hi) {
+			int mid = (lo + hi) >>> 1;
+			System.arraycopy(coords, dims * mid, mins, dims * mid, dims);
+			System.arraycopy(coords, dims * mid, maxs, dims * mid, dims);
+			if (hi - lo == 1) {
+				return;
+			}
+			if (lo < mid) {
+				computeBoxes(lo, mid);
+				expand(mid, (lo + mid) >>> 1);
+			}
+			if (mid + 1 < hi) {
+				computeBoxes(mid + 1, hi);
+				expand(mid, (mid + 1 + hi) >>> 1);
+			}
+			diameters[mid] = diameter(mid);
+		}
+
+		private void expand(int node, int child) {
+			for (int d = 0; d < dims; d++) {
+				mins[dims * node + d] = Math.min(mins[dims * node + d], mins[dims * child + d]);
+				maxs[dims * node + d] = Math.max(maxs[dims * node + d], maxs[dims * child + d]);
+			}
+		}
+
+		/**
+		 * Returns an upper bound on the distance between any two points of the
+		 * box stored at the given position.
+		 */
+		private double diameter(int node) {
+			int o = dims * node;
+			if (tree.spherical) {
+				double sum = 0;
+				for (int d = 0; d < 3; d++) {
+					double span = maxs[o + d] - mins[o + d];
+					sum += span * span;
+				}
+				return Math.sqrt(sum);
+			}
+			double minAbsLat = mins[o + 1] <= 0 && maxs[o + 1] >= 0 ? 0
+					: Math.min(Math.abs(mins[o + 1]), Math.abs(maxs[o + 1]));
+			return Haversine.EARTH_RADIUS * (Math.toRadians(maxs[o + 1] - mins[o + 1])
+					+ Math.cos(Math.toRadians(minAbsLat)) * Math.toRadians(maxs[o] - mins[o]));
+		}
+
+		/**
+		 * Returns a distance within which every point of the query subtree
+		 * already has k neighbors, or {@link Double#MAX_VALUE} while any of its
+		 * points has fewer. This is the smaller of the largest k-th distance in
+		 * the subtree and the smallest k-th distance plus the subtree
+		 * diameter, since the k neighbors of any one point are within that
+		 * distance of every other point of the subtree. A single point is read
+		 * straight from its heap.
+		 */
+		private double bound(int lo, int hi) {
+			if (hi - lo == 1) {
+				return pointBound(lo);
+			}
+			int mid = (lo + hi) >>> 1;
+			return Math.min(bounds[mid], nearest[mid] + diameters[mid]);
+		}
+
+		private double nearest(int lo, int hi) {
+			if (hi - lo == 1) {
+				return pointBound(lo);
+			}
+			return nearest[(lo + hi) >>> 1];
+		}
+
+		private double pointBound(int pos) {
+			int label = labels[pos];
+			return sizes[label] < k ? Double.MAX_VALUE : distances[label * k];
+		}
+
+		/**
+		 * Returns a lower bound on the distance between the two subtrees. The
+		 * box of a single point is the point itself; the box stored at the
+		 * median of an interior subtree covers the whole subtree.
+		 */
+		private double lowerBound(int qlo, int qhi, int rlo, int rhi) {
+			int q = (qlo + qhi) >>> 1;
+			int r = (rlo + rhi) >>> 1;
+			if (qhi - qlo == 1 && rhi - rlo == 1) {
+				return 0;
+			}
+			if (qhi - qlo == 1) {
+				return boxLowerBound(coords, coords, q, mins, maxs, r);
+			}
+			if (rhi - rlo == 1) {
+				return boxLowerBound(mins, maxs, q, coords, coords, r);
+			}
+			return boxLowerBound(mins, maxs, q, mins, maxs, r);
+		}
+
+		private double boxLowerBound(double[] min1, double[] max1, int node1, double[] min2, double[] max2,
+				int node2) {
+			int o1 = dims * node1;
+			int o2 = dims * node2;
+			if (!tree.spherical) {
+				return Haversine.boxLowerBound(min1[o1], min1[o1 + 1], max1[o1], max1[o1 + 1],
+						min2[o2], min2[o2 + 1], max2[o2], max2[o2 + 1]);
+			}
+			double sum = 0;
+			for (int d = 0; d < 3; d++) {
+				double gap = Math.max(0, Math.max(min2[o2 + d] - max1[o1 + d], min1[o1 + d] - max2[o2 + d]));
+				sum += gap * gap;
+			}
+			return Math.sqrt(sum);
+		}
+
+		private void traverse(int qlo, int qhi, int rlo, int rhi) {
+			if (qlo >= qhi || rlo >= rhi) {
+				return;
+			}
+			if (lowerBound(qlo, qhi, rlo, rhi) >= bound(qlo, qhi)) {
+				return;
+			}
+			boolean queryLeaf = qhi - qlo <= LEAF_SIZE;
+			boolean referenceLeaf = rhi - rlo <= LEAF_SIZE;
+
+			if (queryLeaf && referenceLeaf) {
+				scorePairs(qlo, qhi, rlo, rhi);
+			} else if (queryLeaf) {
+				splitReference(qlo, qhi, rlo, rhi);
+			} else {
+				int mid = (qlo + qhi) >>> 1;
+				if (referenceLeaf) {
+					traverse(qlo, mid, rlo, rhi);
+					traverse(mid, mid + 1, rlo, rhi);
+					traverse(mid + 1, qhi, rlo, rhi);
+				} else {
+					splitReference(qlo, mid, rlo, rhi);
+					splitReference(mid, mid + 1, rlo, rhi);
+					splitReference(mid + 1, qhi, rlo, rhi);
+				}
+				updateBound(qlo, qhi);
+			}
+		}
+
+		/**
+		 * Visits the three parts of the reference subtree, closest to the
+		 * query subtree first, so the query bound tightens before the far
+		 * parts are tested.
+		 */
+		private void splitReference(int qlo, int qhi, int rlo, int rhi) {
+			if (qlo >= qhi) {
+				return;
+			}
+			int mid = (rlo + rhi) >>> 1;
+			int[] from = { rlo, mid, mid + 1 };
+			int[] to = { mid, mid + 1, rhi };
+			double[] lower = new double[3];
+			for (int i = 0; i < 3; i++) {
+				lower[i] = from[i] < to[i] ? lowerBound(qlo, qhi, from[i], to[i]) : Double.MAX_VALUE;
+			}
+			for (int visited = 0; visited < 3; visited++) {
+				int best = -1;
+				for (int i = 0; i < 3; i++) {
+					if (lower[i] >= 0 && (best < 0 || lower[i] < lower[best])) {
+						best = i;
+					}
+				}
+				lower[best] = -1;
+				traverse(qlo, qhi, from[best], to[best]);
+			}
+		}
+
+		private void scorePairs(int qlo, int qhi, int rlo, int rhi) {
+			for (int q = qlo; q < qhi; q++) {
+				int label = labels[q];
+				int offset = label * k;
+				if (rhi - rlo > 1 && lowerBound(q, q + 1, rlo, rhi) >= pointBound(q)) {
+					continue;
+				}
+				tree.distances(q, rlo, rhi, scores);
+				for (int r = rlo; r < rhi; r++) {
+					if (r == q) {
+						continue;
+					}
+					if (NeighborHeap.offerNew(tree.neighbors, distances, offset, sizes[label], k,
+							labels[r], scores[r - rlo]) && sizes[label] < k) {
+						sizes[label]++;
+					}
+				}
+			}
+			if (qhi - qlo > 1) {
+				double bound = 0;
+				double closest = Double.MAX_VALUE;
+				for (int q = qlo; q < qhi; q++) {
+					bound = Math.max(bound, pointBound(q));
+					closest = Math.min(closest, pointBound(q));
+				}
+				bounds[(qlo + qhi) >>> 1] = bound;
+				nearest[(qlo + qhi) >>> 1] = closest;
+			}
+		}
+
+		private void updateBound(int lo, int hi) {
+			int mid = (lo + hi) >>> 1;
+			double bound = pointBound(mid);
+			double closest = bound;
+			if (lo < mid) {
+				bound = Math.max(bound, lo + 1 == mid ? pointBound(lo) : bounds[(lo + mid) >>> 1]);
+				closest = Math.min(closest, nearest(lo, mid));
+			}
+			if (mid + 1 < hi) {
+				bound = Math.max(bound, mid + 2 == hi ? pointBound(mid + 1) : bounds[(mid + 1 + hi) >>> 1]);
+				closest = Math.min(closest, nearest(mid + 1, hi));
+			}
+			bounds[mid] = bound;
+			nearest[mid] = closest;
+		}
+
+	}
+
+	/**
+	 * Splits a range of labels in half until it is small enough to search
+	 * sequentially with a single reusable heap.
+	 */
+	@SuppressWarnings("serial")
+	private static class FindKNNTask extends RecursiveAction {
+		private static final int THRESHOLD = 4096;
+
+		private final FlatKdTree tree;
+		private final int from;
+		private final int to;
+
+		FindKNNTask(FlatKdTree tree, int from, int to) {
+			this.tree = tree;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				tree.findKNN(from, to, new NeighborHeap(tree.k));
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new FindKNNTask(tree, from, mid), new FindKNNTask(tree, mid, to));
+		}
+	}
+
+	public int getNumberOfPoints() {
+		return numberOfPoints;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public double getTolerance() {
+		return tolerance;
+	}
+
+	public boolean isSpherical() {
+		return spherical;
+	}
+
+	/**
+	 * Returns the longitude of a point in degrees. In spherical mode it is
+	 * recovered from the unit vector and may differ from the input in the
+	 * last bits.
+	 */
+	public double getX(int label) {
+		return lon(positions[label]);
+	}
+
+	/**
+	 * Returns the latitude of a point in degrees.
+	 */
+	public double getY(int label) {
+		return lat(positions[label]);
+	}
+
+	public Coordinate getCoordinate(int label) {
+		return new Coordinate(getX(label), getY(label));
+	}
+
+	/**
+	 * Returns the distance to the k-th nearest neighbor of a point, or
+	 * {@link Double#MAX_VALUE} before {@link #findKNN()} has run.
+	 */
+	public double getCoreDistance(int label) {
+		return coreDistances[label];
+	}
+
+	/**
+	 * Returns the number of neighbors found for a point, which is k unless the
+	 * tree holds k points or fewer.
+	 */
+	public int getNeighborCount(int label) {
+		if (neighbors == null) {
+			return 0;
+		}
+		int count = 0;
+		while (count < k && neighbors[label * k + count] >= 0) {
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the label of the i-th neighbor of a point. Neighbors are not
+	 * sorted by distance.
+	 */
+	public int getNeighbor(int label, int i) {
+		return neighbors[label * k + i];
+	}
+}
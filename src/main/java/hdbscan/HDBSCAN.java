@@ -8,7 +8,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.GeometryFactory;
@@ -21,6 +21,8 @@ import edu.princeton.cs.algorithms.Edge;
 
 public class HDBSCAN {
 	
+	private static final int DRIFT_SAMPLE_SIZE = 10000;
+	
 	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance){
 		NearestKdTree tree = new NearestKdTree(points,k,tolerance);
 		tree.findKNN();
@@ -28,46 +30,403 @@ public class HDBSCAN {
 		
 	}
 	
-	@SuppressWarnings({ "unchecked", "rawtypes" })
+	/**
+	 * Builds the tree and finds the k nearest neighbors of every point, using
+	 * all available processors when <code>parallel</code> is set. Both modes
+	 * produce the same neighbor sets.
+	 */
+	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance,boolean parallel){
+		if(!parallel){
+			return calculateNearestKdTree(points, k, tolerance);
+		}
+		NearestKdTree tree = new NearestKdTree(points,k,tolerance);
+		ForkJoinPool pool = new ForkJoinPool();
+		try{
+			tree.findKNN(pool);
+		}finally{
+			pool.shutdown();
+		}
+		return tree;
+	}
+	
+	/**
+	 * Like {@link #calculateNearestKdTree(Coordinate[], int, double, boolean)},
+	 * but with an approximate k-nearest-neighbor search whose core distances
+	 * are at most (1 + epsilon) times the exact ones. The drift of a sample
+	 * of points against an exact search is printed.
+	 */
+	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance,boolean parallel,double epsilon){
+		return calculateNearestKdTree(points,k,tolerance,parallel,epsilon,DistanceMetric.HAVERSINE);
+	}
+	
+	/**
+	 * Like {@link #calculateNearestKdTree(Coordinate[], int, double, boolean, double)},
+	 * but measuring distances with the given metric, for example
+	 * {@link DistanceMetric#EUCLIDEAN} for projected coordinates.
+	 */
+	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance,boolean parallel,double epsilon,DistanceMetric metric){
+		return calculateNearestKdTree(points,k,tolerance,parallel,epsilon,metric,Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Like {@link #calculateNearestKdTree(Coordinate[], int, double, boolean, double, DistanceMetric)},
+	 * but never searching farther than <code>maxEpsilon</code> from a point.
+	 * Points without k neighbors within that radius get an infinite core
+	 * distance, see {@link NearestKdTree#setMaxEpsilon(double)}.
+	 */
+	public static NearestKdTree calculateNearestKdTree(Coordinate[] points,int k,double tolerance,boolean parallel,double epsilon,DistanceMetric metric,double maxEpsilon){
+		NearestKdTree tree = new NearestKdTree(points,k,tolerance,epsilon,metric);
+		tree.setMaxEpsilon(maxEpsilon);
+		if(!parallel){
+			tree.findKNN();
+		}else{
+			ForkJoinPool pool = new ForkJoinPool();
+			try{
+				tree.findKNN(pool);
+			}finally{
+				pool.shutdown();
+			}
+		}
+		if(epsilon > 0){
+			System.out.println("Core distance drift: " + tree.measureDrift(DRIFT_SAMPLE_SIZE));
+		}
+		return tree;
+	}
+	
+	/**
+	 * Builds the tree and finds the k nearest neighbors of every point with a
+	 * {@link UniformGrid}, which suits dense data such as a single city. Falls
+	 * back to searching the tree when the density is too uneven for a grid.
+	 */
+	public static NearestKdTree calculateNearestGrid(Coordinate[] points,int k,double tolerance,boolean parallel,DistanceMetric metric){
+		NearestKdTree tree = new NearestKdTree(points,k,tolerance,metric);
+		boolean usedGrid;
+		if(!parallel){
+			usedGrid = tree.findKNNOnGrid(null);
+		}else{
+			ForkJoinPool pool = new ForkJoinPool();
+			try{
+				usedGrid = tree.findKNNOnGrid(pool);
+			}finally{
+				pool.shutdown();
+			}
+		}
+		if(!usedGrid){
+			System.out.println("Density too uneven for a grid, searched the tree");
+		}
+		return tree;
+	}
+	
+	/**
+	 * Builds a {@link FlatKdTree} and finds the k nearest neighbors of every
+	 * point, using all available processors when <code>parallel</code> is set.
+	 */
+	public static FlatKdTree calculateFlatKdTree(Coordinate[] points,int k,double tolerance,boolean parallel){
+		return calculateFlatKdTree(points,k,tolerance,parallel,false);
+	}
+	
+	/**
+	 * Builds a {@link FlatKdTree}, indexing points as unit vectors when
+	 * <code>spherical</code> is set, and finds the k nearest neighbors of
+	 * every point.
+	 */
+	public static FlatKdTree calculateFlatKdTree(Coordinate[] points,int k,double tolerance,boolean parallel,boolean spherical){
+		FlatKdTree tree = new FlatKdTree(points,k,tolerance,spherical);
+		if(!parallel){
+			tree.findKNN();
+			return tree;
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try{
+			tree.findKNN(pool);
+		}finally{
+			pool.shutdown();
+		}
+		return tree;
+	}
+	
 	public static EdgeWeightedGraph calculateWeightedGraph(ArrayList<KdNode> nodes){
-		HashSet<MutualReachabilityEdge> mrEdges = new HashSet();
 		int numNodes = nodes.size();
+		// Labels are unique within a tree and run from 0 up to the number of
+		// nodes, or beyond it once nodes have been inserted or deleted
+		for(KdNode node : nodes){
+			numNodes = Math.max(numNodes, node.getLabel() + 1);
+		}
+		return toWeightedGraph(calculateMutualReachabilityEdges(nodes), numNodes);
+	}
+	
+	/**
+	 * Collects the mutual reachability edge from every node to each of its
+	 * neighbors into a primitive {@link EdgeList}, with edges found from both
+	 * ends kept once.
+	 */
+	public static EdgeList calculateMutualReachabilityEdges(ArrayList<KdNode> nodes){
 		long startTime = System.currentTimeMillis();
-		startTime = System.currentTimeMillis();
+		int numNodes = nodes.size();
 		for(KdNode node : nodes){
-			if(!node.hasKNeighbors()){
-			System.out.println(node.getLabel());
-			System.out.println(node.getNeighbors().size());
-			System.out.println(node.getCoreDistance());
-			System.out.println(node.getNeighbors().values());
+			numNodes = Math.max(numNodes, node.getLabel() + 1);
+		}
+		KdNode[] byLabel = new KdNode[numNodes];
+		long numNeighbors = 0;
+		for(KdNode node : nodes){
+			byLabel[node.getLabel()] = node;
+			numNeighbors += node.getNeighbors().size();
+		}
+		EdgeList edges = new EdgeList((int) Math.min(Integer.MAX_VALUE - 8, numNeighbors));
+		for(KdNode node : nodes){
+			// Edges to a point with an infinite core distance are longer
+			// than the tree's maxEpsilon and stay out of the graph
+			if(Double.isInfinite(node.getCoreDistance())){
+				continue;
 			}
-
-			
-			for(KdNode other : node.getNeighbors().values()){
-				if(node != null && other != null){
-					MutualReachabilityEdge mrEdge = new MutualReachabilityEdge(node, other);
-					mrEdges.add(mrEdge);
+			NeighborHeap neighbors = node.getNeighbors();
+			for(int i = 0; i < neighbors.size(); i++){
+				KdNode other = byLabel[neighbors.getLabel(i)];
+				if(other != null && !Double.isInfinite(other.getCoreDistance())){
+					addMutualReachabilityEdge(edges, node.getLabel(), node.getCoreDistance(),
+							other.getLabel(), other.getCoreDistance());
+				}
+			}
+		}
+		edges.removeDuplicates();
+		System.out.println("Time compute edges: " + (System.currentTimeMillis() - startTime));
+		return edges;
+	}
+	
+	public static EdgeWeightedGraph calculateWeightedGraph(FlatKdTree tree){
+		EdgeList edges = new EdgeList((int) Math.min(Integer.MAX_VALUE - 8, (long) tree.getNumberOfPoints() * tree.getK()));
+		int numNodes = tree.getNumberOfPoints();
+		long startTime = System.currentTimeMillis();
+		for(int label = 0; label < numNodes; label++){
+			int count = tree.getNeighborCount(label);
+			for(int i = 0; i < count; i++){
+				int other = tree.getNeighbor(label, i);
+				addMutualReachabilityEdge(edges, label, tree.getCoreDistance(label),
+						other, tree.getCoreDistance(other));
+			}
+		}
+		edges.removeDuplicates();
+		System.out.println("Time compute edges: " + (System.currentTimeMillis() - startTime));
+		return toWeightedGraph(edges, numNodes);
+	}
+	
+	/**
+	 * Builds the tree and the mutual reachability graph without keeping a
+	 * neighbor list per node. The k nearest neighbors of each point are
+	 * streamed into a primitive {@link EdgeList} as soon as its search ends,
+	 * and the nodes keep only their core distances, so the searches never
+	 * hold k neighbor references per point.
+	 */
+	public static EdgeWeightedGraph calculateStreamedGraph(Coordinate[] points,int k,double tolerance,boolean parallel,DistanceMetric metric){
+		return calculateStreamedGraph(points,k,tolerance,parallel,metric,Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Like {@link #calculateStreamedGraph(Coordinate[], int, double, boolean, DistanceMetric)},
+	 * but never searching farther than <code>maxEpsilon</code> from a point,
+	 * so the graph only has edges up to that length.
+	 */
+	public static EdgeWeightedGraph calculateStreamedGraph(Coordinate[] points,int k,double tolerance,boolean parallel,DistanceMetric metric,double maxEpsilon){
+		long startTime = System.currentTimeMillis();
+		NearestKdTree tree = new NearestKdTree(points,k,tolerance,metric);
+		tree.setMaxEpsilon(maxEpsilon);
+		EdgeList edges = new EdgeList((int) Math.min(Integer.MAX_VALUE - 8, tree.getNumberOfNodes() * k));
+		if(!parallel){
+			tree.findCoreDistances(edges, null);
+		}else{
+			ForkJoinPool pool = new ForkJoinPool();
+			try{
+				tree.findCoreDistances(edges, pool);
+			}finally{
+				pool.shutdown();
+			}
+		}
+		System.out.println("Time find core distances: " + (System.currentTimeMillis() - startTime));
+		return calculateWeightedGraph(tree, edges);
+	}
+	
+	/**
+	 * Turns k-nearest-neighbor edges between the nodes of a tree into the
+	 * mutual reachability graph, using the core distances stored in the
+	 * nodes.
+	 */
+	public static EdgeWeightedGraph calculateWeightedGraph(NearestKdTree tree, EdgeList edges){
+		return toWeightedGraph(calculateMutualReachabilityEdges(tree, edges), tree.getLabelCount());
+	}
+	
+	/**
+	 * Turns k-nearest-neighbor edges between the nodes of a tree into
+	 * mutual reachability edges, kept once per pair of nodes, using the core
+	 * distances stored in the nodes.
+	 */
+	public static EdgeList calculateMutualReachabilityEdges(NearestKdTree tree, EdgeList edges){
+		EdgeList mrEdges = new EdgeList(edges.size());
+		long startTime = System.currentTimeMillis();
+		for(int i = 0; i < edges.size(); i++){
+			int label = edges.getFirst(i);
+			int other = edges.getSecond(i);
+			double core = tree.getNode(label).getCoreDistance();
+			double otherCore = tree.getNode(other).getCoreDistance();
+			if(Double.isInfinite(core) || Double.isInfinite(otherCore)){
+				continue;
+			}
+			addMutualReachabilityEdge(mrEdges, label, core, other, otherCore);
+		}
+		mrEdges.removeDuplicates();
+		System.out.println("Time compute edges: " + (System.currentTimeMillis() - startTime));
+		return mrEdges;
+	}
+	
+	/**
+	 * Finds the neighbors of every point once, for the largest of several
+	 * values of k, and keeps them sorted so that the core distances and the
+	 * mutual reachability graph for each value can be read from the same
+	 * search, see {@link #calculateWeightedGraph(CoreDistanceSweep, int)}.
+	 */
+	public static CoreDistanceSweep calculateCoreDistanceSweep(Coordinate[] points,int[] ks,double tolerance,boolean parallel,DistanceMetric metric){
+		int maxK = 1;
+		for(int k : ks){
+			maxK = Math.max(maxK, k);
+		}
+		NearestKdTree tree = calculateNearestKdTree(points,maxK,tolerance,parallel,0,metric);
+		return new CoreDistanceSweep(tree);
+	}
+	
+	/**
+	 * Builds the mutual reachability graph for one value of k of a sweep,
+	 * from each point's k nearest neighbors and the core distances for k.
+	 * The graph is the one a search for k neighbors would give, up to ties.
+	 */
+	public static EdgeWeightedGraph calculateWeightedGraph(CoreDistanceSweep sweep, int k){
+		double[] coreDistances = sweep.getCoreDistances(k);
+		int numNodes = sweep.getLabelCount();
+		EdgeList edges = new EdgeList((int) Math.min(Integer.MAX_VALUE - 8, (long) numNodes * k));
+		long startTime = System.currentTimeMillis();
+		for(int label = 0; label < numNodes; label++){
+			// Labels without a node have a NaN core distance, and edges to
+			// points beyond maxEpsilon an infinite one
+			if(Double.isNaN(coreDistances[label]) || Double.isInfinite(coreDistances[label])){
+				continue;
+			}
+			int count = Math.min(k, sweep.getNeighborCount(label));
+			for(int i = 0; i < count; i++){
+				int other = sweep.getNeighbor(label, i);
+				if(Double.isNaN(coreDistances[other]) || Double.isInfinite(coreDistances[other])){
+					continue;
 				}
+				addMutualReachabilityEdge(edges, label, coreDistances[label], other, coreDistances[other]);
 			}
 		}
+		edges.removeDuplicates();
 		System.out.println("Time compute edges: " + (System.currentTimeMillis() - startTime));
-		startTime = System.currentTimeMillis();
-		nodes = null;
+		return toWeightedGraph(edges, numNodes);
+	}
+	
+	/**
+	 * Appends the mutual reachability edge between two neighbors, whose
+	 * weight is the larger core distance: each point is within its own core
+	 * distance of its neighbors, so their distance never exceeds it.
+	 */
+	private static void addMutualReachabilityEdge(EdgeList edges, int label, double coreDistance, int other, double otherCore){
+		edges.add(label, other, Math.max(coreDistance, otherCore));
+	}
+	
+	/**
+	 * Copies an edge list into a graph for the algs4 MST algorithms.
+	 */
+	private static EdgeWeightedGraph toWeightedGraph(EdgeList edges, int numNodes){
+		long startTime = System.currentTimeMillis();
 		EdgeWeightedGraph ewg = new EdgeWeightedGraph(numNodes);
-		for(MutualReachabilityEdge e : mrEdges){
-			ewg.addEdge(new Edge(e.getLabel1(),e.getLabel2(),e.getMrDistance()));
+		for(int i = 0; i < edges.size(); i++){
+			ewg.addEdge(new Edge(edges.getFirst(i), edges.getSecond(i), edges.getWeight(i)));
 		}
 		System.out.println("Time add edges to ewg: " + (System.currentTimeMillis() - startTime));
-//		System.out.println(ewg.toString());
 		return ewg;
-		
 	}
 	
 	public static BoruvkaMST createMST(EdgeWeightedGraph ewg){
 		return new BoruvkaMST(ewg);
 	}
 	
+	/**
+	 * Finds the minimum spanning forest of mutual reachability edges with
+	 * Boruvka rounds over the primitive arrays, using all available
+	 * processors when <code>parallel</code> is set.
+	 */
+	public static ParallelBoruvkaMST createMST(EdgeList edges,int numNodes,boolean parallel){
+		if(!parallel){
+			return new ParallelBoruvkaMST(edges, numNodes, null);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try{
+			return new ParallelBoruvkaMST(edges, numNodes, pool);
+		}finally{
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Finds the minimum spanning forest of mutual reachability edges with
+	 * Kruskal's algorithm, sorting the edges by weight with a radix sort on
+	 * all available processors when <code>parallel</code> is set. The forest
+	 * is the same as {@link #createMST(EdgeList, int, boolean)} finds, with
+	 * its edges in ascending weight order.
+	 */
+	public static KruskalMST createKruskalMST(EdgeList edges,int numNodes,boolean parallel){
+		if(!parallel){
+			return new KruskalMST(edges, numNodes, null);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try{
+			return new KruskalMST(edges, numNodes, pool);
+		}finally{
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Finds the exact minimum spanning tree of the complete mutual
+	 * reachability graph of a searched tree's points, which unlike the MST
+	 * of the k-NN graph joins all points unless the tree has a finite
+	 * maxEpsilon, using all available processors when <code>parallel</code>
+	 * is set.
+	 */
+	public static MutualReachabilityMST createExactMST(NearestKdTree tree,boolean parallel){
+		if(!parallel){
+			return new MutualReachabilityMST(tree, null);
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try{
+			return new MutualReachabilityMST(tree, pool);
+		}finally{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Finds the exact minimum spanning tree of the complete mutual
+	 * reachability graph with a dual-tree traversal, which only needs the
+	 * core distances of the tree's points and not their neighbor lists, so
+	 * it also works after {@link NearestKdTree#findCoreDistances(NeighborConsumer, ForkJoinPool)}.
+	 */
+	public static DualTreeBoruvkaMST createDualTreeMST(NearestKdTree tree){
+		return new DualTreeBoruvkaMST(tree);
+	}
+
 	public static void createMstWKT(BoruvkaMST mst,ArrayList<KdNode> nodes){
+		EdgeList edges = new EdgeList();
+		for(Edge e : mst.edges()){
+			int v1 = e.either();
+			edges.add(v1, e.other(v1), e.weight());
+		}
+		createMstWKT(edges, nodes);
+	}
+	
+	public static void createMstWKT(SpanningForest mst,ArrayList<KdNode> nodes){
+		createMstWKT(mst.edges(), nodes);
+	}
+	
+	private static void createMstWKT(EdgeList mstEdges,ArrayList<KdNode> nodes){
 		GeometryFactory gf = new GeometryFactory(new PrecisionModel(),4326);
 		try{
 			File file = new File("testWkt.csv");
@@ -77,14 +436,14 @@ public class HDBSCAN {
 			FileWriter fw = new FileWriter(file.getAbsoluteFile());
 			BufferedWriter bw = new BufferedWriter(fw);
 			bw.write("v1,v2,weight,wkt");
-			for(Edge e : mst.edges()){
-				int v1 = e.either();
-				int v2 = e.other(v1);
+			for(int i = 0; i < mstEdges.size(); i++){
+				int v1 = mstEdges.getFirst(i);
+				int v2 = mstEdges.getSecond(i);
 				Coordinate point1 = nodes.get(v1).getCoordinate();
 				Coordinate point2 = nodes.get(v2).getCoordinate();
 				Coordinate[] coords = {point1,point2};
 				bw.write("\n\"" + v1 + "\"" + "," + "\"" + v2 + "\"" + "," +
-						"\"" + e.weight() + "\"" + "," +"\"" + gf.createLineString(coords) + "\"");
+						"\"" + mstEdges.getWeight(i) + "\"" + "," +"\"" + gf.createLineString(coords) + "\"");
 			}
 			bw.close();
 		}catch(IOException e){
@@ -185,18 +544,20 @@ public class HDBSCAN {
 		return finalDataSet;
 	}
 	 public static void main(String[] args) {
+		// Pass "kruskal" to build the MST by sorting instead of Boruvka rounds
+		boolean kruskal = args.length > 0 && args[0].equals("kruskal");
 		try{
 			Coordinate[] data = readInDataSet("testData.csv", ",");
 			long startTime = System.currentTimeMillis();
-			NearestKdTree tree = calculateNearestKdTree(data, 32, 0.001);
+			NearestKdTree tree = calculateNearestKdTree(data, 32, 0.001, true);
 			System.out.println("Time to calculate NN: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
 			ArrayList<KdNode> nodes = tree.getAllNodes();
 			Collections.sort(nodes);
-			EdgeWeightedGraph ewg = calculateWeightedGraph(nodes);
+			EdgeList edges = calculateMutualReachabilityEdges(nodes);
 			System.out.println("Time to create Edge Weighted Graph: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
-			BoruvkaMST mst = new BoruvkaMST(ewg);
+			SpanningForest mst = kruskal ? createKruskalMST(edges, tree.getLabelCount(), true) : createMST(edges, tree.getLabelCount(), true);
 			System.out.println("Time to create Minimum Spanning Tree: " + (System.currentTimeMillis() - startTime));
 			startTime = System.currentTimeMillis();
 			createMstWKT(mst,nodes);
@@ -0,0 +1,127 @@
+package main.java.hdbscan;
+
+/**
+ * Great-circle distances between lon/lat points given in degrees, and lower
+ * bounds on those distances used to prune kd-tree subtrees. All distances are
+ * in kilometres.
+ */
+public final class Haversine {
+
+	public static final double EARTH_RADIUS = 6371;
+
+	private Haversine() {
+	}
+
+	/**
+	 * Returns the haversine distance between two points.
+	 *
+	 * @param lon1 longitude of the first point in degrees
+	 * @param lat1 latitude of the first point in degrees
+	 * @param lon2 longitude of the second point in degrees
+	 * @param lat2 latitude of the second point in degrees
+	 * @return distance in km
+	 */
+	public static double distance(double lon1, double lat1, double lon2, double lat2) {
+		double latDistance = Math.toRadians(lat2 - lat1);
+		double lonDistance = Math.toRadians(lon2 - lon1);
+		double sinLat = Math.sin(latDistance / 2);
+		double sinLon = Math.sin(lonDistance / 2);
+		double a = sinLat * sinLat
+				+ Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * sinLon * sinLon;
+		return angleToKilometres(a);
+	}
+
+	/**
+	 * Converts the haversine term <code>a = sin<sup>2</sup>(theta/2)</code> of
+	 * a central angle theta to km. Uses <code>atan(sqrt(a / (1 - a)))</code>
+	 * rather than <code>asin(sqrt(a))</code>, which is several times slower
+	 * on the JDK for arguments above one half.
+	 */
+	static double angleToKilometres(double a) {
+		return 2 * EARTH_RADIUS * Math.atan(Math.sqrt(Math.min(1, a) / (1 - Math.min(1, a))));
+	}
+
+	/**
+	 * Converts a distance in km to its haversine term, the inverse of
+	 * {@link #angleToKilometres}. Distances of half the circumference or more
+	 * give positive infinity, so every term compares below them.
+	 */
+	static double kilometresToAngle(double km) {
+		if (km >= Math.PI * EARTH_RADIUS) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double sin = Math.sin(km / (2 * EARTH_RADIUS));
+		return sin * sin;
+	}
+
+	/**
+	 * Returns a lower bound on the distance from a query point to any point on
+	 * the far side of a kd-tree split. The far side is the one the query point
+	 * is not on: values &gt;= split when the query is below it, values &lt;= split
+	 * otherwise. Longitude splits account for wrapping at the antimeridian.
+	 *
+	 * @param lon longitude of the query point in degrees
+	 * @param lat latitude of the query point in degrees
+	 * @param axis 0 for a longitude split, 1 for a latitude split
+	 * @param split the split value in degrees
+	 * @return lower bound in km
+	 */
+	public static double splitLowerBound(double lon, double lat, int axis, double split) {
+		if (axis == 1) {
+			return EARTH_RADIUS * Math.toRadians(Math.abs(lat - split));
+		}
+		double gap;
+		if (lon < split) {
+			gap = Math.min(split - lon, lon + 180);
+		} else {
+			gap = Math.min(lon - split, 180 - lon);
+		}
+		return meridianLowerBound(Math.abs(lat), gap);
+	}
+
+	/**
+	 * Returns a lower bound on the distance between any point of one lon/lat
+	 * box and any point of another. Longitude gaps account for wrapping at
+	 * the antimeridian.
+	 *
+	 * @return lower bound in km
+	 */
+	public static double boxLowerBound(double minLon1, double minLat1, double maxLon1, double maxLat1,
+			double minLon2, double minLat2, double maxLon2, double maxLat2) {
+		double latGap = Math.max(0, Math.max(minLat2 - maxLat1, minLat1 - maxLat2));
+		double lonGap = Math.max(0, Math.max(minLon2 - maxLon1, minLon1 - maxLon2));
+		double wrapGap = 360 - (Math.max(maxLon1, maxLon2) - Math.min(minLon1, minLon2));
+		lonGap = Math.min(lonGap, Math.max(0, wrapGap));
+
+		double bound = EARTH_RADIUS * Math.toRadians(latGap);
+		if (lonGap > 0) {
+			double absLat1 = Math.max(Math.abs(minLat1), Math.abs(maxLat1));
+			double absLat2 = Math.max(Math.abs(minLat2), Math.abs(maxLat2));
+			bound = Math.max(bound, meridianLowerBound(Math.min(absLat1, absLat2), lonGap));
+		}
+		return bound;
+	}
+
+	/**
+	 * Returns a lower bound on the distance from a point to any point whose
+	 * longitude differs by at least <code>gap</code> degrees. The exact value
+	 * is <code>R asin(cos(lat) sin(gap))</code>; this uses
+	 * <code>asin(x) &gt;= x</code> and <code>sin(g) &gt;= g - g<sup>3</sup>/6</code>
+	 * so that pruning tests need no inverse trigonometry.
+	 *
+	 * @param absLat absolute latitude of the point in degrees
+	 * @param gap longitude difference in degrees, between 0 and 180
+	 * @return lower bound in km
+	 */
+	static double meridianLowerBound(double absLat, double gap) {
+		if (gap <= 0) {
+			return 0;
+		}
+		double radLat = Math.toRadians(absLat);
+		if (gap >= 90) {
+			return EARTH_RADIUS * (Math.PI / 2 - radLat);
+		}
+		double g = Math.toRadians(gap);
+		return EARTH_RADIUS * Math.cos(radLat) * (g - g * g * g / 6);
+	}
+}
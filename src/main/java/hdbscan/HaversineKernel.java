@@ -0,0 +1,257 @@
+package main.java.hdbscan;
+
+import java.util.Random;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * <p>Haversine distances between indexed points, computed without allocation
+ * and without per-pair trigonometry on the inputs. Each point is converted to
+ * radians once and its <code>cos(lat)</code> folded into the cached unit
+ * vector <code>(cos(lat) cos(lon), cos(lat) sin(lon), sin(lat))</code>.</p>
+ *
+ * <p>For two such vectors the haversine term
+ * <code>a = sin<sup>2</sup>(dlat/2) + cos(lat1) cos(lat2) sin<sup>2</sup>(dlon/2)</code>
+ * equals a quarter of their squared chord, so a distance costs three
+ * multiply-adds, a square root and an arctangent. The batch methods compute the
+ * haversine terms of all candidates in one loop over primitive arrays, which
+ * the JIT can unroll and vectorize, before converting them to km in a second
+ * loop. Results match {@link Haversine#distance} to within rounding.</p>
+ */
+public final class HaversineKernel {
+
+	private final double[] x;
+	private final double[] y;
+	private final double[] z;
+
+	/**
+	 * Creates a kernel for the given number of points, all at lon/lat (0, 0)
+	 * until set.
+	 */
+	public HaversineKernel(int size) {
+		this.x = new double[size];
+		this.y = new double[size];
+		this.z = new double[size];
+		for (int i = 0; i < size; i++) {
+			x[i] = 1;
+		}
+	}
+
+	/**
+	 * Sets the position of a point.
+	 *
+	 * @param i the index of the point
+	 * @param lon longitude in degrees
+	 * @param lat latitude in degrees
+	 */
+	public void set(int i, double lon, double lat) {
+		double radLon = Math.toRadians(lon);
+		double radLat = Math.toRadians(lat);
+		double cosLat = Math.cos(radLat);
+		x[i] = cosLat * Math.cos(radLon);
+		y[i] = cosLat * Math.sin(radLon);
+		z[i] = Math.sin(radLat);
+	}
+
+	public int size() {
+		return x.length;
+	}
+
+	/**
+	 * Returns the haversine term between an indexed point and a point given
+	 * by its unit vector, see {@link #unitVector}.
+	 */
+	double haversineTerm(int i, double[] unit) {
+		double dx = x[i] - unit[0];
+		double dy = y[i] - unit[1];
+		double dz = z[i] - unit[2];
+		return 0.25 * (dx * dx + dy * dy + dz * dz);
+	}
+
+	/**
+	 * Returns the cached unit vector of a lon/lat point, for points that are
+	 * not indexed by a kernel.
+	 */
+	static double[] unitVector(double lon, double lat) {
+		double radLon = Math.toRadians(lon);
+		double radLat = Math.toRadians(lat);
+		double cosLat = Math.cos(radLat);
+		return new double[] { cosLat * Math.cos(radLon), cosLat * Math.sin(radLon), Math.sin(radLat) };
+	}
+
+	/**
+	 * Returns the haversine distance between two indexed points in km.
+	 */
+	public double distance(int i, int j) {
+		double dx = x[i] - x[j];
+		double dy = y[i] - y[j];
+		double dz = z[i] - z[j];
+		return Haversine.angleToKilometres(0.25 * (dx * dx + dy * dy + dz * dz));
+	}
+
+	/**
+	 * Computes the distances from one point to the points with indices
+	 * <code>[from, to)</code>.
+	 *
+	 * @param query the index of the query point
+	 * @param out receives the distance to point <code>from + i</code> at
+	 *          <code>out[i]</code>
+	 */
+	public void distances(int query, int from, int to, double[] out) {
+		haversineTerms(query, from, to, out);
+		for (int i = 0; i < to - from; i++) {
+			out[i] = Haversine.angleToKilometres(out[i]);
+		}
+	}
+
+	/**
+	 * Computes the haversine terms from one point to the points with indices
+	 * <code>[from, to)</code>, without converting them to km. The terms grow
+	 * with the distance, so callers can discard candidates by comparing terms
+	 * and only pay for the conversion of those they keep.
+	 *
+	 * @param query the index of the query point
+	 * @param out receives the term for point <code>from + i</code> at
+	 *          <code>out[i]</code>
+	 */
+	public void haversineTerms(int query, int from, int to, double[] out) {
+		double qx = x[query];
+		double qy = y[query];
+		double qz = z[query];
+		int count = to - from;
+		for (int i = 0; i < count; i++) {
+			double dx = qx - x[from + i];
+			double dy = qy - y[from + i];
+			double dz = qz - z[from + i];
+			out[i] = 0.25 * (dx * dx + dy * dy + dz * dz);
+		}
+	}
+
+	/**
+	 * Offers the points with indices <code>[from, to)</code>, other than the
+	 * query, to a heap of nearest neighbors. Candidates are compared to the
+	 * heap's current k-th distance as haversine terms, and only the ones that
+	 * can enter the heap are converted to km.
+	 *
+	 * @param labels the label to offer for each index, or null to offer the
+	 *          indices themselves
+	 * @param scratch room for <code>to - from</code> terms
+	 */
+	void offer(int query, int from, int to, int[] labels, NeighborHeap heap, double[] scratch) {
+		haversineTerms(query, from, to, scratch);
+		double limit = heap.isFull() ? Haversine.kilometresToAngle(heap.maxDistance()) : Double.POSITIVE_INFINITY;
+		for (int i = from; i < to; i++) {
+			// The margin keeps candidates that only tie after rounding
+			if (i != query && scratch[i - from] <= limit * (1 + 1e-9)
+					&& heap.offerNew(labels == null ? i : labels[i], Haversine.angleToKilometres(scratch[i - from]))
+					&& heap.isFull()) {
+				limit = Haversine.kilometresToAngle(heap.maxDistance());
+			}
+		}
+	}
+
+	/**
+	 * Computes the distances from one point to a list of candidates.
+	 *
+	 * @param query the index of the query point
+	 * @param candidates the indices of the candidates
+	 * @param count the number of candidates to score
+	 * @param out receives the distance to <code>candidates[i]</code> at
+	 *          <code>out[i]</code>
+	 */
+	public void distances(int query, int[] candidates, int count, double[] out) {
+		double qx = x[query];
+		double qy = y[query];
+		double qz = z[query];
+		for (int i = 0; i < count; i++) {
+			int c = candidates[i];
+			double dx = qx - x[c];
+			double dy = qy - y[c];
+			double dz = qz - z[c];
+			out[i] = 0.25 * (dx * dx + dy * dy + dz * dz);
+		}
+		for (int i = 0; i < count; i++) {
+			out[i] = Haversine.angleToKilometres(out[i]);
+		}
+	}
+
+
+	/**
+	 * Times {@link KdNode#computeDistance}, {@link Haversine#distance}, and the
+	 * pairwise and batch kernel methods on the same random candidate lists,
+	 * and reports the largest difference from {@link KdNode#computeDistance}.
+	 */
+	public static void main(String[] args) {
+		int n = 100000;
+		int batch = 16;
+		int rounds = 1;
+		Random random = new Random(42);
+		Coordinate[] points = new Coordinate[n];
+		HaversineKernel kernel = new HaversineKernel(n);
+		for (int i = 0; i < n; i++) {
+			points[i] = new Coordinate(-180 + 360 * random.nextDouble(), -90 + 180 * random.nextDouble());
+			kernel.set(i, points[i].x, points[i].y);
+		}
+		int[] candidates = new int[batch];
+		double[] out = new double[batch];
+		KdNode node = new KdNode(points[0], 0, 1, 0);
+
+		for (int warmup = 0; warmup < 2; warmup++) {
+			long startTime = System.currentTimeMillis();
+			double sum = 0;
+			for (int round = 0; round < rounds; round++) {
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < batch; j++) {
+						sum += node.computeDistance(points[i], points[(i + j + 1) % n]);
+					}
+				}
+			}
+			System.out.println("KdNode.computeDistance: " + (System.currentTimeMillis() - startTime) + " ms " + sum);
+
+			startTime = System.currentTimeMillis();
+			sum = 0;
+			for (int round = 0; round < rounds; round++) {
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < batch; j++) {
+						Coordinate other = points[(i + j + 1) % n];
+						sum += Haversine.distance(points[i].x, points[i].y, other.x, other.y);
+					}
+				}
+			}
+			System.out.println("Haversine.distance: " + (System.currentTimeMillis() - startTime) + " ms " + sum);
+
+			startTime = System.currentTimeMillis();
+			sum = 0;
+			for (int round = 0; round < rounds; round++) {
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < batch; j++) {
+						sum += kernel.distance(i, (i + j + 1) % n);
+					}
+				}
+			}
+			System.out.println("HaversineKernel.distance: " + (System.currentTimeMillis() - startTime) + " ms " + sum);
+
+			startTime = System.currentTimeMillis();
+			sum = 0;
+			for (int round = 0; round < rounds; round++) {
+				for (int i = 0; i < n; i++) {
+					for (int j = 0; j < batch; j++) {
+						candidates[j] = (i + j + 1) % n;
+					}
+					kernel.distances(i, candidates, batch, out);
+					for (int j = 0; j < batch; j++) {
+						sum += out[j];
+					}
+				}
+			}
+			System.out.println("HaversineKernel.distances: " + (System.currentTimeMillis() - startTime) + " ms " + sum);
+		}
+
+		double maxError = 0;
+		for (int i = 0; i < n; i++) {
+			int j = random.nextInt(n);
+			maxError = Math.max(maxError, Math.abs(kernel.distance(i, j) - node.computeDistance(points[i], points[j])));
+		}
+		System.out.println("Max difference: " + maxError + " km");
+	}
+}
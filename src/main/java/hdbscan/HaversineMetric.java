@@ -0,0 +1,23 @@
+package main.java.hdbscan;
+
+/**
+ * The haversine distance between lon/lat points, in km. See
+ * {@link Haversine}.
+ */
+public class HaversineMetric implements DistanceMetric {
+
+	@Override
+	public double distance(double x1, double y1, double x2, double y2) {
+		return Haversine.distance(x1, y1, x2, y2);
+	}
+
+	@Override
+	public double splitLowerBound(double x, double y, int axis, double split) {
+		return Haversine.splitLowerBound(x, y, axis, split);
+	}
+
+	@Override
+	public String toString() {
+		return "Haversine";
+	}
+}
@@ -0,0 +1,45 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints, used where an
+ * <code>ArrayList&lt;Integer&gt;</code> would box every element.
+ */
+class IntArrayList {
+
+	private int[] items;
+	private int size;
+
+	IntArrayList() {
+		this(16);
+	}
+
+	IntArrayList(int capacity) {
+		items = new int[Math.max(1, capacity)];
+		size = 0;
+	}
+
+	void add(int value) {
+		if (size == items.length) {
+			items = Arrays.copyOf(items, items.length * 2);
+		}
+		items[size++] = value;
+	}
+
+	int get(int i) {
+		return items[i];
+	}
+
+	int size() {
+		return size;
+	}
+
+	void clear() {
+		size = 0;
+	}
+
+	int[] toArray() {
+		return Arrays.copyOf(items, size);
+	}
+}
@@ -0,0 +1,358 @@
+package main.java.hdbscan;
+
+import java.util.List;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * <p>One static, bucketed kd-tree over a subset of the nodes of a
+ * {@link NearestKdTree}, in the implicit layout of {@link KdTreeLayout}. The
+ * tree keeps the points it was built with in one level and the points
+ * inserted since in a series of levels of doubling size, which are merged
+ * and rebuilt as they fill up, so no level is ever updated in place.</p>
+ *
+ * <p>Besides the coordinates and labels in layout order, a level keeps the
+ * largest core distance in each subtree, keyed by the position of the
+ * subtree's split point (or the first position of a leaf bucket). A point
+ * can only enter the neighbors of points in a subtree if it is closer to the
+ * subtree than that bound, which lets inserts and deletes find the points
+ * whose neighbors change without visiting the others. The bounds are
+ * refreshed on the way back up from every such search.</p>
+ */
+final class KdLevel {
+
+	private final double[] coords;
+	private final int[] labels;
+	private final double[] maxCore;
+	private final int leafSize;
+	private final DistanceMetric metric;
+	private final HaversineKernel kernel;
+	private int deleted;
+
+	/**
+	 * Wraps an arranged layout.
+	 *
+	 * @param coords interleaved coordinates in layout order
+	 * @param labels the label at each position, or null if each position is
+	 *          its own label
+	 * @param kernel the haversine kernel of the positions, or null to
+	 *          measure distances with the metric
+	 */
+	KdLevel(double[] coords, int[] labels, int leafSize, DistanceMetric metric, HaversineKernel kernel,
+			NearestKdTree tree) {
+		this.coords = coords;
+		this.labels = labels;
+		this.leafSize = leafSize;
+		this.metric = metric;
+		this.kernel = kernel;
+		this.maxCore = new double[coords.length / 2];
+		refreshBounds(0, size(), tree);
+	}
+
+	/**
+	 * Arranges the given nodes into a new level.
+	 *
+	 * @param labels the labels of the nodes, which this level takes over
+	 */
+	static KdLevel build(int[] labels, int leafSize, DistanceMetric metric, NearestKdTree tree) {
+		double[] coords = new double[2 * labels.length];
+		for (int i = 0; i < labels.length; i++) {
+			KdNode node = tree.getNode(labels[i]);
+			coords[2 * i] = node.getX();
+			coords[2 * i + 1] = node.getY();
+		}
+		KdTreeLayout.build(coords, 2, labels, 0, labels.length, 0, leafSize);
+		HaversineKernel kernel = null;
+		if (metric == DistanceMetric.HAVERSINE) {
+			kernel = new HaversineKernel(labels.length);
+			for (int i = 0; i < labels.length; i++) {
+				kernel.set(i, coords[2 * i], coords[2 * i + 1]);
+			}
+		}
+		return new KdLevel(coords, labels, leafSize, metric, kernel, tree);
+	}
+
+	int size() {
+		return coords.length / 2;
+	}
+
+	int label(int position) {
+		return labels == null ? position : labels[position];
+	}
+
+	int getDeleted() {
+		return deleted;
+	}
+
+	void markDeleted() {
+		deleted++;
+	}
+
+	/**
+	 * Adds the labels of the points of this level that are not deleted to a
+	 * list.
+	 */
+	void collectLive(IntArrayList result, boolean[] isDeleted) {
+		for (int i = 0; i < size(); i++) {
+			if (!isDeleted[label(i)]) {
+				result.add(label(i));
+			}
+		}
+	}
+
+	/**
+	 * Finds the nearest points of this level to a location, skipping deleted
+	 * points and the point with label <code>exclude</code>.
+	 */
+	void search(Query query, boolean[] isDeleted) {
+		search(0, size(), 0, query, isDeleted);
+	}
+
+	private void search(int lo, int hi, int depth, Query query, boolean[] isDeleted) {
+		NeighborHeap heap = query.heap;
+		while (hi - lo > leafSize) {
+			int mid = (lo + hi) >>> 1;
+			offer(mid, query, isDeleted);
+			int axis = depth & 1;
+			double split = coords[2 * mid + axis];
+			boolean nearLeft = (axis == 0 ? query.x : query.y) < split;
+			if (nearLeft) {
+				search(lo, mid, depth + 1, query, isDeleted);
+			} else {
+				search(mid + 1, hi, depth + 1, query, isDeleted);
+			}
+			if (heap.isFull() && metric.splitLowerBound(query.x, query.y, axis, split) >= heap.maxDistance()) {
+				return;
+			}
+			if (nearLeft) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+			depth++;
+		}
+		for (int i = lo; i < hi; i++) {
+			offer(i, query, isDeleted);
+		}
+	}
+
+	/**
+	 * Offers the point at a position to the query's heap. With a kernel, the
+	 * haversine term is compared to the heap's current k-th distance first,
+	 * and only points that can enter the heap are converted to km.
+	 */
+	private void offer(int position, Query query, boolean[] isDeleted) {
+		int label = label(position);
+		if (label == query.exclude || isDeleted[label]) {
+			return;
+		}
+		NeighborHeap heap = query.heap;
+		if (kernel == null) {
+			heap.offerNew(label, metric.distance(query.x, query.y, coords[2 * position], coords[2 * position + 1]));
+			return;
+		}
+		double term = kernel.haversineTerm(position, query.unit);
+		// The margin keeps candidates that only tie after rounding
+		if (heap.isFull() && term > query.limit * (1 + 1e-9)) {
+			return;
+		}
+		if (heap.offerNew(label, Haversine.angleToKilometres(term)) && heap.isFull()) {
+			query.limit = Haversine.kilometresToAngle(heap.maxDistance());
+		}
+	}
+
+	private double distance(int position, KdNode point, double[] unit) {
+		if (kernel != null) {
+			return Haversine.angleToKilometres(kernel.haversineTerm(position, unit));
+		}
+		return metric.distance(point.getX(), point.getY(), coords[2 * position], coords[2 * position + 1]);
+	}
+
+	/**
+	 * Offers a newly inserted point to every point of this level that it is
+	 * strictly closer to than its current core distance, which are exactly
+	 * the points whose neighbors change.
+	 */
+	void offerInserted(KdNode inserted, NearestKdTree tree, boolean[] isDeleted) {
+		double[] unit = HaversineKernel.unitVector(inserted.getX(), inserted.getY());
+		visitReachable(0, size(), 0, inserted, unit, 0, false, tree, isDeleted);
+	}
+
+	/**
+	 * Searches again for the neighbors of every point of this level that had
+	 * a deleted point among its neighbors.
+	 */
+	void repairDeleted(KdNode removed, NearestKdTree tree, boolean[] isDeleted) {
+		visitReachable(0, size(), 0, removed, null, 0, true, tree, isDeleted);
+	}
+
+	/**
+	 * Visits the points of a subtree that <code>point</code> is within the
+	 * core distance of and returns the refreshed core distance bound of the
+	 * subtree.
+	 *
+	 * @param bound a lower bound on the distance from the point to the
+	 *          subtree
+	 * @param removed whether the point was deleted rather than inserted
+	 */
+	private double visitReachable(int lo, int hi, int depth, KdNode point, double[] unit, double bound,
+			boolean removed, NearestKdTree tree, boolean[] isDeleted) {
+		if (lo >= hi) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		if (hi - lo <= leafSize) {
+			if (bound > maxCore[lo] || (!removed && bound == maxCore[lo])) {
+				return maxCore[lo];
+			}
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				max = Math.max(max, visit(i, point, unit, removed, tree, isDeleted));
+			}
+			return maxCore[lo] = max;
+		}
+		int mid = (lo + hi) >>> 1;
+		if (bound > maxCore[mid] || (!removed && bound == maxCore[mid])) {
+			return maxCore[mid];
+		}
+		int axis = depth & 1;
+		double split = coords[2 * mid + axis];
+		double value = axis == 0 ? point.getX() : point.getY();
+		double farBound = Math.max(bound, metric.splitLowerBound(point.getX(), point.getY(), axis, split));
+		double max = visit(mid, point, unit, removed, tree, isDeleted);
+		max = Math.max(max, visitReachable(lo, mid, depth + 1, point, unit, value < split ? bound : farBound,
+				removed, tree, isDeleted));
+		max = Math.max(max, visitReachable(mid + 1, hi, depth + 1, point, unit, value < split ? farBound : bound,
+				removed, tree, isDeleted));
+		return maxCore[mid] = max;
+	}
+
+	/**
+	 * Updates the neighbors of the point at a position if the inserted or
+	 * deleted point affects them, and returns its core distance, or negative
+	 * infinity for a deleted point.
+	 */
+	private double visit(int position, KdNode point, double[] unit, boolean removed, NearestKdTree tree,
+			boolean[] isDeleted) {
+		int label = label(position);
+		if (isDeleted[label]) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		KdNode node = tree.getNode(label);
+		if (label == point.getLabel()) {
+			return coreBound(node);
+		}
+		NeighborHeap neighbors = node.getNeighbors();
+		if (removed) {
+			if (neighbors.contains(point.getLabel())) {
+				tree.searchAgain(node);
+			}
+		} else {
+			double distance = distance(position, point, unit);
+			if (distance < coreBound(node)) {
+				neighbors.offer(point.getLabel(), distance);
+				tree.updateCoreDistance(node);
+			}
+		}
+		return coreBound(node);
+	}
+
+	/**
+	 * Returns the core distance of a node, or infinity if it has fewer than k
+	 * neighbors and so would take any point.
+	 */
+	private static double coreBound(KdNode node) {
+		// The heap rather than the core distance, which may be capped at
+		// the tree's maxEpsilon
+		NeighborHeap heap = node.getNeighbors();
+		return heap.isFull() ? heap.maxDistance() : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Recomputes the core distance bounds of positions <code>[lo, hi)</code>.
+	 */
+	private double refreshBounds(int lo, int hi, NearestKdTree tree) {
+		if (lo >= hi) {
+			return Double.NEGATIVE_INFINITY;
+		}
+		if (hi - lo <= leafSize) {
+			double max = Double.NEGATIVE_INFINITY;
+			for (int i = lo; i < hi; i++) {
+				max = Math.max(max, boundOf(label(i), tree));
+			}
+			return maxCore[lo] = max;
+		}
+		int mid = (lo + hi) >>> 1;
+		double max = boundOf(label(mid), tree);
+		max = Math.max(max, refreshBounds(lo, mid, tree));
+		max = Math.max(max, refreshBounds(mid + 1, hi, tree));
+		return maxCore[mid] = max;
+	}
+
+	private static double boundOf(int label, NearestKdTree tree) {
+		return coreBound(tree.getNode(label));
+	}
+
+	/**
+	 * Adds the points of this level inside an envelope, other than deleted
+	 * ones, to a list.
+	 */
+	void query(Envelope envelope, List<KdNode> result, NearestKdTree tree, boolean[] isDeleted) {
+		query(0, size(), 0, envelope, result, tree, isDeleted);
+	}
+
+	private void query(int lo, int hi, int depth, Envelope envelope, List<KdNode> result, NearestKdTree tree,
+			boolean[] isDeleted) {
+		if (hi - lo <= leafSize) {
+			for (int i = lo; i < hi; i++) {
+				addIfInside(i, envelope, result, tree, isDeleted);
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		int axis = depth & 1;
+		double split = coords[2 * mid + axis];
+		double min = axis == 0 ? envelope.getMinX() : envelope.getMinY();
+		double max = axis == 0 ? envelope.getMaxX() : envelope.getMaxY();
+		// Values equal to the split can be on either side of it
+		if (min <= split) {
+			query(lo, mid, depth + 1, envelope, result, tree, isDeleted);
+		}
+		addIfInside(mid, envelope, result, tree, isDeleted);
+		if (split <= max) {
+			query(mid + 1, hi, depth + 1, envelope, result, tree, isDeleted);
+		}
+	}
+
+	private void addIfInside(int position, Envelope envelope, List<KdNode> result, NearestKdTree tree,
+			boolean[] isDeleted) {
+		int label = label(position);
+		if (!isDeleted[label] && envelope.contains(coords[2 * position], coords[2 * position + 1])) {
+			result.add(tree.getNode(label));
+		}
+	}
+
+	/**
+	 * A k-nearest-neighbor search of one location across the levels of a
+	 * tree.
+	 */
+	static final class Query {
+		final double x;
+		final double y;
+		final double[] unit;
+		final int exclude;
+		final NeighborHeap heap;
+		double limit;
+
+		/**
+		 * @param exclude the label of a point to skip, or -1
+		 */
+		Query(double x, double y, int exclude, NeighborHeap heap) {
+			this.x = x;
+			this.y = y;
+			this.unit = HaversineKernel.unitVector(x, y);
+			this.exclude = exclude;
+			this.heap = heap;
+			this.limit = heap.isFull() ? Haversine.kilometresToAngle(heap.maxDistance()) : Double.POSITIVE_INFINITY;
+		}
+	}
+}
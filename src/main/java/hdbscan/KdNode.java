@@ -1,7 +1,6 @@
 package main.java.hdbscan;
 
 import java.util.Arrays;
-import java.util.TreeMap;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
@@ -22,32 +21,30 @@ public class KdNode implements Comparable<KdNode> {
     private Double coreDistance;
     private Double bboxDistace; 
 	private Integer label;
-	private TreeMap<Double, KdNode> neighbors;
+	private NeighborHeap neighbors;
 	private Integer k;
-	private static int nodeCount = 0;
 
 
 	private Envelope bbox;
 	private boolean hasKNeighbors;
+	private int bucketSize = 1;
 
     /**
      * Creates a new KdNode.
      * 
      * @param _x coordinate of point
      * @param _y coordinate of point
-     * @param data a data objects to associate with this node
+     * @param label the label of this node, unique within its tree
      */
-    public KdNode(double _x, double _y,int axis, int k) {
+    public KdNode(double _x, double _y,int axis, int k, int label) {
         p = new Coordinate(_x, _y);
         left = null;
         right = null;
         count = 1;
-        this.label = nodeCount;
-        nodeCount += 1;
+        this.label = label;
         this.k = k;
         this.axis = axis;
 		this.coreDistance = Double.MAX_VALUE;
-		this.neighbors = new TreeMap();
 		
 		bbox = new Envelope(p,p);
     }
@@ -56,20 +53,18 @@ public class KdNode implements Comparable<KdNode> {
      * Creates a new KdNode.
      * 
      * @param p point location of new node
-     * @param data a data objects to associate with this node
+     * @param label the label of this node, unique within its tree
      */
-    public KdNode(Coordinate p, int axis, int k) {
+    public KdNode(Coordinate p, int axis, int k, int label) {
         this.p = new Coordinate(p);
         left = null;
         right = null;
         count = 1;
         
-        this.label = nodeCount;
-        nodeCount += 1;
+        this.label = label;
         this.k = k;
         this.axis = axis;
 		this.coreDistance = Double.MAX_VALUE;
-		this.neighbors = new TreeMap();
 		
 		bbox = new Envelope(p,p);
     }
@@ -83,8 +78,8 @@ public class KdNode implements Comparable<KdNode> {
     	double dist;
     	double radLat = Math.toRadians(p.y);
     	double radLon = Math.toRadians(p.x);
-    	Double[] distArray = new Double[neighbors.size()];
-    	neighbors.descendingKeySet().toArray(distArray);
+    	NeighborHeap neighbors = getNeighbors();
+    	double[] distArray = neighbors.sortedDistances();
     	
     	if(neighbors.size() % 2 == 0){
     		int half = neighbors.size()/2;
@@ -118,75 +113,58 @@ public class KdNode implements Comparable<KdNode> {
     }
     
     public Double addNeighbor(KdNode other){
-    	if(neighbors.containsValue(other)){
-    		return null;
-    	}
-
-		double currDistance = computeDistance(this.p,other.p);
-		double retDistance = currDistance;
-		
-		if(neighbors.size() < k){
-			neighbors.put(currDistance,other);
-			if(neighbors.size() == k){
-				hasKNeighbors = true;
-			}
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		}
-		else if(currDistance < coreDistance){
-//			System.out.println("Before remove:" + neighbors.size());
-			neighbors.pollLastEntry();
-//			System.out.println("After remove: " + neighbors.size());
-			neighbors.put(currDistance,other);
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		} else return null;
-		
+		return addNeighbor(other, computeDistance(this.p,other.p));
 	}
     
     public Double addNeighbor(KdNode other, double distance){
-    	if(neighbors.containsValue(other)){
-    		return null;
-    	}
-
-		double currDistance = distance;
-		double retDistance = currDistance;
-
-		if(neighbors.size() < k){
-			neighbors.put(currDistance,other);
-			if(neighbors.size() == k){
-				hasKNeighbors = true;
-			}
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
+		if(!getNeighbors().offer(other.label, distance)){
+			return null;
+		}
+		updateCoreDistance();
+		return distance;
+    }
+    
+    // Re-reads the core distance after the neighbor heap was filled directly
+    void updateCoreDistance(){
+		updateCoreDistance(getNeighbors());
+    }
+    
+    // Takes the core distance from a heap that is not kept, for searches
+    // that only need the core distance to stay with the node
+    void updateCoreDistance(NeighborHeap heap){
+		hasKNeighbors = heap.isFull();
+		coreDistance = heap.maxDistance();
+    }
+    
+    // As above, but a point without k neighbors within maxEpsilon gets an
+    // infinite core distance, so it never joins a cluster
+    void updateCoreDistance(NeighborHeap heap, double maxEpsilon){
+		updateCoreDistance(heap);
+		if(maxEpsilon != Double.POSITIVE_INFINITY && (!hasKNeighbors || coreDistance > maxEpsilon)){
+			coreDistance = Double.POSITIVE_INFINITY;
 		}
-		else if(currDistance < coreDistance){
-			neighbors.pollLastEntry();
-			neighbors.put(currDistance,other);
-			coreDistance = neighbors.lastEntry().getKey();
-			return retDistance;
-		} else return null;
     }
     
     public double computeDistance(Coordinate point1, Coordinate point2){
 		final int R = 6371; // Radius of the earth
 		
-        Double lat1 = point1.y;
-        Double lon1 = point1.x;
-        Double lat2 = point2.y;
-        Double lon2 = point2.x;
-        Double latDistance = toRad(lat2-lat1);
-        Double lonDistance = toRad(lon2-lon1);
-        Double a = Math.sin(latDistance / 2) * Math.sin(latDistance / 2) + 
+        double lat1 = point1.y;
+        double lon1 = point1.x;
+        double lat2 = point2.y;
+        double lon2 = point2.x;
+        double latDistance = toRad(lat2-lat1);
+        double lonDistance = toRad(lon2-lon1);
+        double sinLat = Math.sin(latDistance / 2);
+        double sinLon = Math.sin(lonDistance / 2);
+        double a = sinLat * sinLat + 
                    Math.cos(toRad(lat1)) * Math.cos(toRad(lat2)) * 
-                   Math.sin(lonDistance / 2) * Math.sin(lonDistance / 2);
-        Double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
-        Double distance = R * c;
+                   sinLon * sinLon;
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1-a));
         
-		return distance;
+		return R * c;
 	}
 	
-	private static Double toRad(Double value) {
+	private static double toRad(double value) {
         return value * Math.PI / 180;
     }
 	
@@ -271,7 +249,24 @@ public class KdNode implements Comparable<KdNode> {
 	}
 
 
-	public TreeMap<Double, KdNode> getNeighbors() {
+	/**
+	 * Returns the nearest neighbors found for this node. The heap is created
+	 * on first use, so nodes whose neighbors are streamed elsewhere by
+	 * {@link NearestKdTree#findCoreDistances} never allocate one.
+	 * 
+	 * @return the neighbor heap of this node
+	 */
+	public NeighborHeap getNeighbors() {
+		if (neighbors == null) {
+			neighbors = new NeighborHeap(k);
+		}
+		return neighbors;
+	}
+	
+	/**
+	 * Returns the neighbor heap of this node, or null if none was created.
+	 */
+	NeighborHeap getNeighborsIfPresent() {
 		return neighbors;
 	}
 	
@@ -302,6 +297,11 @@ public class KdNode implements Comparable<KdNode> {
         count = count + 1;
     }
 
+    // Sets the number of points merged into this location
+    void setCount(int count) {
+        this.count = count;
+    }
+
     /**
      * Returns the number of inserted points that are coincident at this location.
      * 
@@ -311,6 +311,23 @@ public class KdNode implements Comparable<KdNode> {
         return count;
     }
 
+    /**
+     * Returns the number of points held by this node. A leaf of a bucketed
+     * tree holds the points with labels <code>label</code> to
+     * <code>label + bucketSize - 1</code>, starting with its own; the other
+     * points of the bucket are not linked into the tree and have the leaf as
+     * their parent. Every other node holds only its own point.
+     * 
+     * @return the number of points in this node's bucket
+     */
+    public int getBucketSize() {
+        return bucketSize;
+    }
+
+    void setBucketSize(int bucketSize) {
+        this.bucketSize = bucketSize;
+    }
+
     public Envelope getBbox() {
 		return bbox;
 	}
@@ -354,7 +371,7 @@ public class KdNode implements Comparable<KdNode> {
 	@Override
 	public String toString() {
 		return "KdNode [p=" + p + ", coreDistance=" + coreDistance + ", label=" + label + ", neighborDistances="
-				+ Arrays.toString(neighbors.descendingKeySet().toArray()) + ", bbox=" + bbox + ", hasKNeighbors=" + hasKNeighbors + "]";
+				+ Arrays.toString(getNeighbors().sortedDistances()) + ", bbox=" + bbox + ", hasKNeighbors=" + hasKNeighbors + "]";
 	}
 
 	@Override
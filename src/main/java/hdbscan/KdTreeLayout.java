@@ -0,0 +1,171 @@
+package main.java.hdbscan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>Arranges points in place into the implicit layout of a balanced kd-tree.
+ * After {@link #build}, the subtree covering positions <code>[lo, hi)</code>
+ * has its splitting point at <code>mid = (lo + hi) / 2</code>, its left subtree
+ * in <code>[lo, mid)</code> and its right subtree in <code>[mid + 1, hi)</code>.
+ * Every value on the split axis is no greater than the split value on the
+ * left and no smaller on the right. Nodes at depth d split on axis
+ * <code>d % dims</code>.</p>
+ *
+ * <p>Coordinates are interleaved, <code>dims</code> values per point, and a
+ * parallel array of labels is permuted along with them. Each level finds its
+ * medians with quickselect, so the layout takes O(n log n) time and no extra
+ * memory. Subtrees above a size threshold are arranged in parallel.</p>
+ *
+ * <p>With a leaf size above one, ranges of at most that many points are left
+ * unsplit, in no particular order, as the buckets of a bucketed tree.</p>
+ */
+public final class KdTreeLayout {
+
+	private static final int PARALLEL_THRESHOLD = 1 << 15;
+
+	private KdTreeLayout() {
+	}
+
+	/**
+	 * Arranges all points on the calling thread.
+	 *
+	 * @param coords interleaved coordinates, <code>dims</code> per point
+	 * @param dims the number of coordinates per point
+	 * @param labels the label of each point, permuted with the coordinates
+	 * @param depth the depth of the root, which picks its split axis
+	 */
+	public static void build(double[] coords, int dims, int[] labels, int depth) {
+		build(coords, dims, labels, 0, labels.length, depth, 1);
+	}
+
+	/**
+	 * Arranges all points, splitting subtrees above a size threshold across
+	 * the threads of the given pool. The layout is identical to the one made
+	 * by {@link #build(double[], int, int[], int)}.
+	 */
+	public static void build(double[] coords, int dims, int[] labels, int depth, ForkJoinPool pool) {
+		pool.invoke(new BuildTask(coords, dims, labels, 0, labels.length, depth, 1));
+	}
+
+	/**
+	 * Arranges all points, using a temporary pool when there are enough of
+	 * them to make threads worthwhile.
+	 */
+	public static void buildParallel(double[] coords, int dims, int[] labels, int depth) {
+		buildParallel(coords, dims, labels, depth, 1);
+	}
+
+	/**
+	 * Arranges all points down to buckets of at most <code>leafSize</code>
+	 * points, using a temporary pool when there are enough of them to make
+	 * threads worthwhile.
+	 */
+	public static void buildParallel(double[] coords, int dims, int[] labels, int depth, int leafSize) {
+		if (labels.length < 2 * PARALLEL_THRESHOLD) {
+			build(coords, dims, labels, 0, labels.length, depth, leafSize);
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			pool.invoke(new BuildTask(coords, dims, labels, 0, labels.length, depth, leafSize));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	static void build(double[] coords, int dims, int[] labels, int lo, int hi, int depth, int leafSize) {
+		while (hi - lo > leafSize) {
+			int mid = (lo + hi) >>> 1;
+			select(coords, dims, labels, lo, hi, mid, depth % dims);
+			build(coords, dims, labels, lo, mid, depth + 1, leafSize);
+			lo = mid + 1;
+			depth++;
+		}
+	}
+
+	/**
+	 * Rearranges positions <code>[lo, hi)</code> so that the point at
+	 * <code>nth</code> has the value it would have if the range were sorted on
+	 * the given axis, with no greater values before it and no smaller values
+	 * after it. Uses a three-way partition so runs of equal values do not
+	 * degrade to quadratic time.
+	 */
+	static void select(double[] coords, int dims, int[] labels, int lo, int hi, int nth, int axis) {
+		while (hi - lo > 1) {
+			double pivot = medianOfThree(coords[dims * lo + axis],
+					coords[dims * ((lo + hi) >>> 1) + axis], coords[dims * (hi - 1) + axis]);
+			int lt = lo;
+			int i = lo;
+			int gt = hi;
+			while (i < gt) {
+				double value = coords[dims * i + axis];
+				if (value < pivot) {
+					swap(coords, dims, labels, lt++, i++);
+				} else if (value > pivot) {
+					swap(coords, dims, labels, i, --gt);
+				} else {
+					i++;
+				}
+			}
+			if (nth < lt) {
+				hi = lt;
+			} else if (nth >= gt) {
+				lo = gt;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static double medianOfThree(double a, double b, double c) {
+		if (a < b) {
+			return b < c ? b : (a < c ? c : a);
+		}
+		return a < c ? a : (b < c ? c : b);
+	}
+
+	private static void swap(double[] coords, int dims, int[] labels, int i, int j) {
+		for (int d = 0; d < dims; d++) {
+			double value = coords[dims * i + d];
+			coords[dims * i + d] = coords[dims * j + d];
+			coords[dims * j + d] = value;
+		}
+		int label = labels[i];
+		labels[i] = labels[j];
+		labels[j] = label;
+	}
+
+	@SuppressWarnings("serial")
+	private static class BuildTask extends RecursiveAction {
+		private final double[] coords;
+		private final int dims;
+		private final int[] labels;
+		private final int lo;
+		private final int hi;
+		private final int depth;
+		private final int leafSize;
+
+		BuildTask(double[] coords, int dims, int[] labels, int lo, int hi, int depth, int leafSize) {
+			this.coords = coords;
+			this.dims = dims;
+			this.labels = labels;
+			this.lo = lo;
+			this.hi = hi;
+			this.depth = depth;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (hi - lo < PARALLEL_THRESHOLD) {
+				build(coords, dims, labels, lo, hi, depth, leafSize);
+				return;
+			}
+			int mid = (lo + hi) >>> 1;
+			select(coords, dims, labels, lo, hi, mid, depth % dims);
+			invokeAll(new BuildTask(coords, dims, labels, lo, mid, depth + 1, leafSize),
+					new BuildTask(coords, dims, labels, mid + 1, hi, depth + 1, leafSize));
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package main.java.hdbscan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>A minimum spanning forest of an {@link EdgeList}, found by Kruskal's
+ * algorithm: the edges are sorted by weight once and then swept in order
+ * through a union-find, keeping every edge that joins two trees.</p>
+ *
+ * <p>The sort is an LSD radix sort of the IEEE bit patterns of the weights,
+ * which for non-negative doubles order the same way as the values. Each
+ * pass counts the byte of every key per chunk of edges, turns the counts
+ * into an offset for every chunk and byte, and scatters the chunks to their
+ * offsets, both on a {@link ForkJoinPool}. Bytes that are the same in all
+ * keys, such as the high exponent bits of weights of similar magnitude, are
+ * skipped. The sort is stable, so ties in weight keep their input order and
+ * the forest is the same as {@link ParallelBoruvkaMST} finds.</p>
+ *
+ * <p>Each radix pass reads the keys in order twice, where a Bor&#367;vka
+ * round looks up the components of both ends of every edge still alive, and
+ * the sweep stops as soon as the forest has <code>numVertices - 1</code>
+ * edges. Sorting needs 24 bytes per edge. The result holds the edges in
+ * ascending weight order.</p>
+ */
+public final class KruskalMST implements SpanningForest {
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int RADIX_BITS = 8;
+	private static final int RADIX = 1 << RADIX_BITS;
+	private static final int KEYS = 0;
+	private static final int COUNT = 1;
+	private static final int SCATTER = 2;
+
+	private final EdgeList edges;
+	private final int numVertices;
+	private final ForkJoinPool pool;
+	private final int[] parent;
+	private long[] keys;
+	private long[] nextKeys;
+	private int[] order;
+	private int[] nextOrder;
+	private long[] changedBits;
+	private long reference;
+	private int[] offsets;
+	private int shift;
+
+	private EdgeList forest;
+	private double weight;
+	private int componentCount;
+
+	/**
+	 * Finds a minimum spanning forest of a graph.
+	 *
+	 * @param edges the edges of the graph, which are not modified, with
+	 *          non-negative weights
+	 * @param numVertices the number of vertices, all labels being below it
+	 * @param pool the pool to sort on, or null to sort on the calling thread
+	 * @throws IllegalArgumentException if a weight is negative or NaN
+	 */
+	public KruskalMST(EdgeList edges, int numVertices, ForkJoinPool pool) {
+		this.edges = edges;
+		this.numVertices = numVertices;
+		this.pool = pool;
+		this.parent = new int[numVertices];
+		for (int v = 0; v < numVertices; v++) {
+			parent[v] = v;
+		}
+		sort();
+		sweep();
+	}
+
+	private void sort() {
+		int size = edges.size();
+		int chunks = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		keys = new long[size];
+		nextKeys = new long[size];
+		order = new int[size];
+		nextOrder = new int[size];
+		changedBits = new long[chunks];
+		// Bits that differ from the first key in any key vary between keys
+		reference = size == 0 ? 0 : key(edges.getWeight(0));
+		runPass(KEYS, chunks);
+
+		long changed = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			changed |= changedBits[chunk];
+		}
+		offsets = new int[chunks * RADIX];
+		for (shift = 0; shift < Long.SIZE; shift += RADIX_BITS) {
+			if ((changed >>> shift & (RADIX - 1)) == 0) {
+				continue;
+			}
+			runPass(COUNT, chunks);
+			// Offsets run over all chunks for each byte, so equal bytes keep
+			// the order of their chunks
+			int total = 0;
+			for (int digit = 0; digit < RADIX; digit++) {
+				for (int chunk = 0; chunk < chunks; chunk++) {
+					int count = offsets[chunk * RADIX + digit];
+					offsets[chunk * RADIX + digit] = total;
+					total += count;
+				}
+			}
+			runPass(SCATTER, chunks);
+			long[] swapKeys = keys;
+			keys = nextKeys;
+			nextKeys = swapKeys;
+			int[] swapOrder = order;
+			order = nextOrder;
+			nextOrder = swapOrder;
+		}
+		keys = null;
+		nextKeys = null;
+		nextOrder = null;
+		changedBits = null;
+		offsets = null;
+	}
+
+	private void sweep() {
+		int size = order.length;
+		forest = new EdgeList(Math.max(0, Math.min(size, numVertices - 1)));
+		weight = 0;
+		for (int i = 0; i < size && forest.size() < numVertices - 1; i++) {
+			int e = order[i];
+			if (union(edges.getFirst(e), edges.getSecond(e))) {
+				forest.add(edges.getFirst(e), edges.getSecond(e), edges.getWeight(e));
+				weight += edges.getWeight(e);
+			}
+		}
+		componentCount = numVertices - forest.size();
+		order = null;
+	}
+
+	private int find(int x) {
+		while (parent[x] != x) {
+			parent[x] = parent[parent[x]];
+			x = parent[x];
+		}
+		return x;
+	}
+
+	/**
+	 * Links the root with the larger label under the other, so every root is
+	 * the smallest label of its tree.
+	 */
+	private boolean union(int a, int b) {
+		a = find(a);
+		b = find(b);
+		if (a == b) {
+			return false;
+		}
+		if (a < b) {
+			parent[b] = a;
+		} else {
+			parent[a] = b;
+		}
+		return true;
+	}
+
+	private void runPass(int pass, int chunks) {
+		if (chunks == 0) {
+			return;
+		}
+		if (pool == null) {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				runChunk(pass, chunk);
+			}
+		} else {
+			pool.invoke(new ChunkTask(this, pass, 0, chunks));
+		}
+	}
+
+	void runChunk(int pass, int chunk) {
+		int from = chunk * CHUNK_SIZE;
+		int to = Math.min(keys.length, from + CHUNK_SIZE);
+		switch (pass) {
+		case KEYS:
+			long changed = 0;
+			for (int i = from; i < to; i++) {
+				double w = edges.getWeight(i);
+				if (!(w >= 0)) {
+					throw new IllegalArgumentException("Edge " + i + " has a weight that is negative or NaN: " + w);
+				}
+				keys[i] = key(w);
+				order[i] = i;
+				changed |= keys[i] ^ reference;
+			}
+			changedBits[chunk] = changed;
+			break;
+		case COUNT:
+			int base = chunk * RADIX;
+			for (int digit = 0; digit < RADIX; digit++) {
+				offsets[base + digit] = 0;
+			}
+			for (int i = from; i < to; i++) {
+				offsets[base + digit(keys[i])]++;
+			}
+			break;
+		case SCATTER:
+			int offset = chunk * RADIX;
+			for (int i = from; i < to; i++) {
+				int j = offsets[offset + digit(keys[i])]++;
+				nextKeys[j] = keys[i];
+				nextOrder[j] = order[i];
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pass: " + pass);
+		}
+	}
+
+	/**
+	 * Returns the bits of a non-negative weight, adding 0.0 so that -0.0
+	 * becomes 0.0, whose bits sort first.
+	 */
+	private static long key(double w) {
+		return Double.doubleToLongBits(w + 0.0);
+	}
+
+	private int digit(long key) {
+		return (int) (key >>> shift) & (RADIX - 1);
+	}
+
+	/**
+	 * Returns the edges of the forest, in ascending weight order.
+	 */
+	@Override
+	public EdgeList edges() {
+		return forest;
+	}
+
+	@Override
+	public double weight() {
+		return weight;
+	}
+
+	@Override
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	@Override
+	public int getComponent(int v) {
+		return find(v);
+	}
+
+	@SuppressWarnings("serial")
+	private static class ChunkTask extends RecursiveAction {
+		private final KruskalMST mst;
+		private final int pass;
+		private final int from;
+		private final int to;
+
+		ChunkTask(KruskalMST mst, int pass, int from, int to) {
+			this.mst = mst;
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				mst.runChunk(pass, from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ChunkTask(mst, pass, from, mid), new ChunkTask(mst, pass, mid, to));
+		}
+	}
+}
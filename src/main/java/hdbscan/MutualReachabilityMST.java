@@ -0,0 +1,457 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>The exact minimum spanning tree of the complete mutual reachability
+ * graph of the points of a {@link NearestKdTree}, in which every pair of
+ * points is joined by an edge of weight
+ * <code>max(core(p), core(q), d(p, q))</code>.</p>
+ *
+ * <p>The MST of the k-NN graph is not enough: it is a forest when groups of
+ * points are further apart than their neighbors, and even within one
+ * component it can join two clusters through a third point when their
+ * closest pair is not among each other's k nearest neighbors. This class
+ * runs Bor&#367;vka rounds over the complete graph instead. In each round
+ * every component needs its cheapest edge to any point outside it, which
+ * is found in two steps:</p>
+ *
+ * <ol>
+ * <li>The k-NN edges of each point that leave its component give an upper
+ *     bound. A neighbor q lies within core(p), so the edge weighs
+ *     <code>max(core(p), core(q))</code>, and when core(q) &le; core(p) it is
+ *     the cheapest edge p has at all.</li>
+ * <li>Points that could still do better search the tree for the nearest
+ *     point not in their component, by mutual reachability. Subtrees whose
+ *     points all belong to the query's component are skipped, as are those
+ *     whose smallest core distance or distance from the query already
+ *     reaches the best edge of the component.</li>
+ * </ol>
+ *
+ * <p>Most points are settled by their neighbors in the first round. Later
+ * rounds only search from points whose core distance is below the best
+ * edge their component has so far, and each search is bounded by that
+ * edge, which threads share and lower as they find better ones. Ties between
+ * components that pick edges of equal weight are resolved by the
+ * union-find, which skips an edge that would close a cycle.</p>
+ *
+ * <p>Points with an infinite core distance, beyond the tree's maxEpsilon,
+ * are left out, as are edges heavier than maxEpsilon, so the result is a
+ * forest when maxEpsilon is finite.</p>
+ */
+public final class MutualReachabilityMST implements SpanningForest {
+
+	private static final int CHUNK_SIZE = 1 << 12;
+	private static final int FLATTEN = 0;
+	private static final int NEIGHBOR_EDGES = 1;
+	private static final int TREE_EDGES = 2;
+
+	/**
+	 * The component of a subtree whose points belong to several components.
+	 */
+	private static final int MIXED = -1;
+
+	/**
+	 * The component of a subtree without any point that takes part.
+	 */
+	private static final int NONE = -2;
+
+	private final NearestKdTree tree;
+	private final double[] coords;
+	private final int numPoints;
+	private final int leafSize;
+	private final DistanceMetric metric;
+	private final ForkJoinPool pool;
+	private final double[] coreDistances;
+	private final KdNode[] nodes;
+	private final double limit;
+	private final ConcurrentUnionFind components;
+	private final int[] component;
+	private final int[] subtreeComponent;
+	private final double[] subtreeMinCore;
+	private final AtomicLongArray componentBest;
+	private final int[] bestTo;
+	private final double[] bestWeight;
+
+	private EdgeList forest;
+	private double weight;
+	private int componentCount;
+
+	/**
+	 * Finds the MST of the points of a bulk-loaded tree whose core distances
+	 * have been computed, for example by {@link NearestKdTree#findKNN()}. The
+	 * neighbors found by that search speed up the first rounds; a tree whose
+	 * neighbors were streamed out by
+	 * {@link NearestKdTree#findCoreDistances(NeighborConsumer, ForkJoinPool)}
+	 * is searched for every edge instead.
+	 *
+	 * @param tree the tree holding the points and their core distances
+	 * @param pool the pool to search on, or null to search on the calling
+	 *          thread
+	 */
+	public MutualReachabilityMST(NearestKdTree tree, ForkJoinPool pool) {
+		this.tree = tree;
+		this.coords = tree.getCoordinates();
+		this.numPoints = coords.length / 2;
+		this.leafSize = tree.getLeafSize();
+		this.metric = tree.getMetric();
+		this.pool = pool;
+		this.coreDistances = new double[numPoints];
+		this.nodes = new KdNode[numPoints];
+		for (int i = 0; i < numPoints; i++) {
+			nodes[i] = tree.getNode(i);
+			coreDistances[i] = nodes[i].getCoreDistance();
+		}
+		// Only edges up to maxEpsilon are kept, so the first candidate to
+		// beat is just above it
+		this.limit = Math.nextUp(tree.getMaxEpsilon());
+		this.components = new ConcurrentUnionFind(numPoints);
+		this.component = new int[numPoints];
+		this.subtreeComponent = new int[numPoints];
+		this.subtreeMinCore = new double[numPoints];
+		this.componentBest = new AtomicLongArray(numPoints);
+		this.bestTo = new int[numPoints];
+		this.bestWeight = new double[numPoints];
+		run();
+	}
+
+	private void run() {
+		EdgeList picked = new EdgeList();
+		int[] chosenFrom = new int[numPoints];
+		while (true) {
+			runPass(FLATTEN);
+			summarize(0, numPoints, 0);
+			for (int i = 0; i < numPoints; i++) {
+				componentBest.set(i, Double.doubleToLongBits(limit));
+				bestTo[i] = -1;
+				bestWeight[i] = limit;
+			}
+			runPass(NEIGHBOR_EDGES);
+			runPass(TREE_EDGES);
+
+			// The cheapest edge of each component, by the root's label
+			Arrays.fill(chosenFrom, -1);
+			for (int p = 0; p < numPoints; p++) {
+				if (bestTo[p] < 0) {
+					continue;
+				}
+				int root = component[p];
+				if (chosenFrom[root] < 0 || bestWeight[p] < bestWeight[chosenFrom[root]]) {
+					chosenFrom[root] = p;
+				}
+			}
+			int before = picked.size();
+			for (int root = 0; root < numPoints; root++) {
+				int p = chosenFrom[root];
+				if (p >= 0 && components.union(p, bestTo[p])) {
+					picked.add(p, bestTo[p], bestWeight[p]);
+				}
+			}
+			if (picked.size() == before) {
+				break;
+			}
+		}
+
+		forest = picked;
+		weight = 0;
+		for (int i = 0; i < picked.size(); i++) {
+			weight += picked.getWeight(i);
+		}
+		componentCount = numPoints - picked.size();
+	}
+
+	private boolean takesPart(int p) {
+		return coreDistances[p] < limit;
+	}
+
+	/**
+	 * Records the component shared by all points of the subtree covering
+	 * positions <code>[lo, hi)</code> and their smallest core distance. A
+	 * subtree is keyed by its split position, or by its first position if it
+	 * is a leaf bucket, which never coincide.
+	 *
+	 * @return the component of the subtree, {@link #MIXED} or {@link #NONE}
+	 */
+	private int summarize(int lo, int hi, int depth) {
+		if (hi <= lo) {
+			return NONE;
+		}
+		int own = NONE;
+		double minCore = Double.POSITIVE_INFINITY;
+		int key;
+		if (hi - lo > leafSize) {
+			key = (lo + hi) >>> 1;
+			own = merge(summarize(lo, key, depth + 1), summarize(key + 1, hi, depth + 1));
+			minCore = Math.min(minCore(lo, key), minCore(key + 1, hi));
+			own = merge(own, pointComponent(key));
+			if (takesPart(key)) {
+				minCore = Math.min(minCore, coreDistances[key]);
+			}
+		} else {
+			key = lo;
+			for (int i = lo; i < hi; i++) {
+				own = merge(own, pointComponent(i));
+				if (takesPart(i)) {
+					minCore = Math.min(minCore, coreDistances[i]);
+				}
+			}
+		}
+		subtreeComponent[key] = own;
+		subtreeMinCore[key] = minCore;
+		return own;
+	}
+
+	/**
+	 * Returns the smallest core distance of a subtree already summarized.
+	 */
+	private double minCore(int lo, int hi) {
+		if (hi <= lo) {
+			return Double.POSITIVE_INFINITY;
+		}
+		return subtreeMinCore[hi - lo > leafSize ? (lo + hi) >>> 1 : lo];
+	}
+
+	private int pointComponent(int p) {
+		return takesPart(p) ? component[p] : NONE;
+	}
+
+	private static int merge(int a, int b) {
+		if (a == NONE) {
+			return b;
+		}
+		if (b == NONE || a == b) {
+			return a;
+		}
+		return MIXED;
+	}
+
+	private void runPass(int pass) {
+		int chunks = (numPoints + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		if (chunks == 0) {
+			return;
+		}
+		if (pool == null) {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				runChunk(pass, chunk);
+			}
+		} else {
+			pool.invoke(new ChunkTask(this, pass, 0, chunks));
+		}
+	}
+
+	void runChunk(int pass, int chunk) {
+		int from = chunk * CHUNK_SIZE;
+		int to = Math.min(numPoints, from + CHUNK_SIZE);
+		switch (pass) {
+		case FLATTEN:
+			for (int p = from; p < to; p++) {
+				component[p] = components.find(p);
+			}
+			break;
+		case NEIGHBOR_EDGES:
+			for (int p = from; p < to; p++) {
+				if (takesPart(p)) {
+					offerNeighbors(p);
+				}
+			}
+			break;
+		case TREE_EDGES:
+			int[] nearest = new int[1];
+			for (int p = from; p < to; p++) {
+				if (!takesPart(p)) {
+					continue;
+				}
+				double bound = Math.min(bestWeight[p], best(component[p]));
+				// Every edge of p weighs at least its core distance
+				if (coreDistances[p] >= bound) {
+					continue;
+				}
+				nearest[0] = -1;
+				double found = nearestOutside(0, numPoints, 0, p, bound, nearest);
+				if (nearest[0] >= 0) {
+					bestTo[p] = nearest[0];
+					bestWeight[p] = found;
+					lowerBest(component[p], found);
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pass: " + pass);
+		}
+	}
+
+	/**
+	 * Takes the cheapest of the point's k-NN edges that leave its component.
+	 */
+	private void offerNeighbors(int p) {
+		NeighborHeap neighbors = nodes[p].getNeighborsIfPresent();
+		if (neighbors == null) {
+			return;
+		}
+		int own = component[p];
+		for (int i = 0; i < neighbors.size(); i++) {
+			int q = neighbors.getLabel(i);
+			if (!takesPart(q) || component[q] == own) {
+				continue;
+			}
+			double w = Math.max(Math.max(coreDistances[p], coreDistances[q]), neighbors.getDistance(i));
+			if (w < bestWeight[p]) {
+				bestTo[p] = q;
+				bestWeight[p] = w;
+			}
+		}
+		if (bestTo[p] >= 0) {
+			lowerBest(own, bestWeight[p]);
+		}
+	}
+
+	/**
+	 * Searches the subtree covering positions <code>[lo, hi)</code> for the
+	 * point outside the query's component with the smallest mutual
+	 * reachability distance below <code>bound</code>, in the same order as
+	 * the tree's k-NN search.
+	 *
+	 * @param nearest receives the label of a closer point, if one is found
+	 * @return the new bound
+	 */
+	private double nearestOutside(int lo, int hi, int depth, int query, double bound, int[] nearest) {
+		int own = component[query];
+		double core = coreDistances[query];
+		double qx = coords[2 * query];
+		double qy = coords[2 * query + 1];
+		while (hi - lo > leafSize) {
+			int mid = (lo + hi) >>> 1;
+			if (!canImprove(mid, own, core, bound)) {
+				return bound;
+			}
+			bound = offer(query, mid, bound, nearest);
+			int axis = depth & 1;
+			double split = coords[2 * mid + axis];
+			boolean nearLeft = (axis == 0 ? qx : qy) < split;
+			if (nearLeft) {
+				bound = nearestOutside(lo, mid, depth + 1, query, bound, nearest);
+			} else {
+				bound = nearestOutside(mid + 1, hi, depth + 1, query, bound, nearest);
+			}
+			if (Math.max(core, metric.splitLowerBound(qx, qy, axis, split)) >= bound) {
+				return bound;
+			}
+			if (nearLeft) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+			depth++;
+		}
+		if (hi > lo && canImprove(lo, own, core, bound)) {
+			for (int i = lo; i < hi; i++) {
+				bound = offer(query, i, bound, nearest);
+			}
+		}
+		return bound;
+	}
+
+	private boolean canImprove(int key, int own, double core, double bound) {
+		int shared = subtreeComponent[key];
+		return shared != own && shared != NONE && Math.max(core, subtreeMinCore[key]) < bound;
+	}
+
+	private double offer(int query, int other, double bound, int[] nearest) {
+		if (other == query || !takesPart(other) || component[other] == component[query]) {
+			return bound;
+		}
+		double w = Math.max(coreDistances[query], coreDistances[other]);
+		if (w >= bound) {
+			return bound;
+		}
+		w = Math.max(w, tree.distance(query, other));
+		if (w < bound) {
+			nearest[0] = other;
+			return w;
+		}
+		return bound;
+	}
+
+	/**
+	 * Returns the weight of the cheapest edge found so far from a component.
+	 */
+	private double best(int root) {
+		return Double.longBitsToDouble(componentBest.get(root));
+	}
+
+	/**
+	 * Lowers the best edge weight of a component. Weights are not negative,
+	 * so their bits order like the weights themselves.
+	 */
+	private void lowerBest(int root, double w) {
+		long bits = Double.doubleToLongBits(w);
+		while (true) {
+			long current = componentBest.get(root);
+			if (bits >= current || componentBest.compareAndSet(root, current, bits)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Returns the edges of the tree, or of the forest if some points cannot
+	 * be joined within maxEpsilon, in the order they were found.
+	 */
+	@Override
+	public EdgeList edges() {
+		return forest;
+	}
+
+	@Override
+	public double weight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of trees in the forest, counting every point left
+	 * out for its infinite core distance, which is 1 when all points are
+	 * joined.
+	 */
+	@Override
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * Returns the tree of the forest a point belongs to, as the smallest
+	 * label in that tree. A point left out for its infinite core distance is
+	 * a tree of its own.
+	 */
+	@Override
+	public int getComponent(int v) {
+		return components.find(v);
+	}
+
+	@SuppressWarnings("serial")
+	private static class ChunkTask extends RecursiveAction {
+		private final MutualReachabilityMST mst;
+		private final int pass;
+		private final int from;
+		private final int to;
+
+		ChunkTask(MutualReachabilityMST mst, int pass, int from, int to) {
+			this.mst = mst;
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				mst.runChunk(pass, from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ChunkTask(mst, pass, from, mid), new ChunkTask(mst, pass, mid, to));
+		}
+	}
+}
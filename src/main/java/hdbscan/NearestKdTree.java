@@ -4,8 +4,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.ListIterator;
-import java.util.TreeSet;
 import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
@@ -45,6 +46,32 @@ public class NearestKdTree{
 	private KdNode last = null;
 	private long numberOfNodes;
 	private Envelope treeBBox;
+	private double epsilon = 0;
+	private double maxEpsilon = Double.POSITIVE_INFINITY;
+	private DistanceMetric metric = DistanceMetric.HAVERSINE;
+	private HaversineKernel distances;
+	private int leafSize = DEFAULT_LEAF_SIZE;
+	private double[] coords;
+	private KdNode[] nodes;
+	private int k;
+	private KdLevel bulk;
+	private ArrayList<KdLevel> levels;
+	private ArrayList<KdNode> insertedNodes;
+	private int[] levelOf;
+	private boolean[] deleted;
+	private boolean neighborsFound;
+	
+	/**
+	 * The default number of points in a leaf bucket.
+	 */
+	public static final int DEFAULT_LEAF_SIZE = 16;
+	
+	/**
+	 * The number of inserted points the smallest level holds, see
+	 * {@link #insert(Coordinate)}.
+	 */
+	private static final int LEVEL_BASE = 64;
+	
 	/**
 	 * <p>Creates an empty <code>NearestKdTree</code>.</p>
 	 * 
@@ -70,6 +97,68 @@ public class NearestKdTree{
 		loadTree(points,k);
 	}
 	
+	/**
+	 * Creates a tree that measures distances with the given metric instead
+	 * of haversine. With {@link DistanceMetric#EUCLIDEAN}, points in a
+	 * projected coordinate system can be searched without any trigonometry.
+	 * 
+	 * @param tol the snap tolerance
+	 * @param metric the distance between points
+	 */
+	public NearestKdTree(Coordinate[] points, int k, double tol, DistanceMetric metric) { 
+		super();
+		this.tolerance = tol;
+		this.metric = metric;
+		loadTree(points,k);
+	}
+	
+	/**
+	 * Creates a tree whose k-nearest-neighbor search is approximate. A
+	 * subtree is skipped once the closest point it could hold, enlarged by a
+	 * factor of (1 + epsilon), is no closer than the current k-th distance, so
+	 * every reported core distance is at most (1 + epsilon) times the exact
+	 * one.
+	 * 
+	 * @param tol the snap tolerance
+	 * @param epsilon the allowed relative error of core distances, 0 for an
+	 *          exact search
+	 */
+	public NearestKdTree(Coordinate[] points, int k, double tol, double epsilon) { 
+		this(points, k, tol);
+		this.epsilon = epsilon;
+	}
+	
+	/**
+	 * Creates a tree with the given metric whose k-nearest-neighbor search
+	 * is approximate, see {@link #NearestKdTree(Coordinate[], int, double, double)}.
+	 */
+	public NearestKdTree(Coordinate[] points, int k, double tol, double epsilon, DistanceMetric metric) { 
+		this(points, k, tol, metric);
+		this.epsilon = epsilon;
+	}
+	
+	/**
+	 * Creates a tree whose leaves hold buckets of up to <code>leafSize</code>
+	 * points instead of one point each. The coordinates of a bucket are
+	 * stored next to each other and scanned in one loop, and the tree has
+	 * about <code>leafSize</code> times fewer levels of nodes to descend.
+	 * A leaf size of 1 gives a tree of one point per node.
+	 * 
+	 * @param tol the snap tolerance
+	 * @param metric the distance between points
+	 * @param leafSize the largest number of points in a leaf
+	 */
+	public NearestKdTree(Coordinate[] points, int k, double tol, DistanceMetric metric, int leafSize) { 
+		super();
+		if (leafSize < 1) {
+			throw new IllegalArgumentException("Leaf size must be at least 1: " + leafSize);
+		}
+		this.tolerance = tol;
+		this.metric = metric;
+		this.leafSize = leafSize;
+		loadTree(points,k);
+	}
+	
 	 /**
 	   * Tests whether the index contains any items.
 	   * 
@@ -77,8 +166,7 @@ public class NearestKdTree{
 	   */
 	  public boolean isEmpty()
 	  {
-	    if (root == null) return true;
-	    return false;
+	    return numberOfNodes == 0;
 	  }
 	  
 
@@ -99,14 +187,19 @@ public class NearestKdTree{
 				max = queryEnv.getMaxY();
 				discriminant = currentNode.getY();
 			}
-			boolean searchLeft = min < discriminant;
+			// Values equal to the split can be on either side of it
+			boolean searchLeft = min <= discriminant;
 			boolean searchRight = discriminant <= max;
 
 			if (searchLeft) {
 				queryNode(currentNode.getLeft(), bottomNode, queryEnv, !odd, result);
 			}
-			if (queryEnv.contains(currentNode.getCoordinate())) {
-				result.add(currentNode);
+			int bucketEnd = currentNode.getLabel() + currentNode.getBucketSize();
+			for (int i = currentNode.getLabel(); i < bucketEnd; i++) {
+				KdNode node = i == currentNode.getLabel() ? currentNode : nodes[i];
+				if (queryEnv.contains(node.getCoordinate()) && !isDeleted(node.getLabel())) {
+					result.add(node);
+				}
 			}
 			if (searchRight) {
 				queryNode(currentNode.getRight(), bottomNode, queryEnv, !odd, result);
@@ -123,7 +216,7 @@ public class NearestKdTree{
 		 */
 		public ArrayList<KdNode> query(Envelope queryEnv) {
 			ArrayList<KdNode> result = new ArrayList<KdNode>();
-			queryNode(root, last, queryEnv, true, result);
+			query(queryEnv, result);
 			return result;
 		}
 
@@ -137,6 +230,13 @@ public class NearestKdTree{
 		 */
 		public void query(Envelope queryEnv, List<KdNode> result) {
 			queryNode(root, last, queryEnv, true, result);
+			if (levels != null) {
+				for (KdLevel level : levels) {
+					if (level != null) {
+						level.query(queryEnv, result, this, deleted);
+					}
+				}
+			}
 		}
 
 	/**
@@ -335,75 +435,301 @@ public class NearestKdTree{
 	}
 	
 	/**
-	 * Searches for the nearest neighbor to the indicated point, excluding from
-	 * consideration all points listed in the exclude collection. (Recursive)
-	 * @param start location in the tree to start searching.
-	 * @param searchPt point to search for
-	 * @param exclude collection of points which cannot be the nearest neighbor.
-	 * @return search point, nearest neighbor, and separation distance.
+	 * Finds the k nearest neighbors of every node in the tree on the calling
+	 * thread. Each node only ever updates its own neighbor set, so the result
+	 * does not depend on the order in which the nodes are visited.
 	 */
-	@SuppressWarnings("unchecked")
 	public void findKNN() {
-		ArrayList<KdNode> path;
-//		long startTime;
+		checkBulkLoaded();
+		double[] scratch = new double[leafSize];
 		for(KdNode node : getAllNodes()){
-			
-			boolean envQuery = node.hasKNeighbors();
-			if(node.hasKNeighbors()){
-//				startTime = System.currentTimeMillis();
-				node.calculateBBox();
-				path = query(node.getBbox());
-//				System.out.println("Init Envelope Query: " + (System.currentTimeMillis() - startTime));
-
-			}else{
-//				startTime = System.currentTimeMillis();
-				ArrayListVisitor v = new ArrayListVisitor();
-				traverse(root,node,v);
-				path = v.getItems();
-//				System.out.println("Init Traverse Parent and Children: " + 
-//				"(" + path.size() + ") " + (System.currentTimeMillis() - startTime));
+			searchNeighbors(node, scratch);
+		}
+		neighborsFound = true;
+	}
+	
+	/**
+	 * Finds the k nearest neighbors of every node in the tree, splitting the
+	 * nodes across the threads of the given pool. The result is identical to
+	 * {@link #findKNN()}.
+	 * 
+	 * @param pool the fork-join pool to run the searches on
+	 */
+	public void findKNN(ForkJoinPool pool) {
+		checkBulkLoaded();
+		ArrayList<KdNode> nodes = getAllNodes();
+		pool.invoke(new FindKNNTask(this, nodes, 0, nodes.size()));
+		neighborsFound = true;
+	}
+	
+	/**
+	 * Finds the core distance of every node without keeping its neighbors.
+	 * Each node's neighbors are passed to the consumer as soon as its search
+	 * is finished, and only the core distance is stored in the node, so the
+	 * tree does not hold k neighbors per node. Searches share one heap per
+	 * thread instead of allocating one per node.
+	 * 
+	 * @param consumer receives the neighbors of each node
+	 * @param pool the fork-join pool to run the searches on, or null to
+	 *          search on the calling thread
+	 */
+	public void findCoreDistances(NeighborConsumer consumer, ForkJoinPool pool) {
+		checkBulkLoaded();
+		neighborsFound = false;
+		if (pool == null) {
+			findCoreDistances(consumer, 0, nodes.length);
+		} else {
+			pool.invoke(new CoreDistanceTask(this, consumer, 0, nodes.length));
+		}
+	}
+	
+	private void findCoreDistances(NeighborConsumer consumer, int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		NeighborHeap heap = new NeighborHeap(nodes[from].getK());
+		double[] scratch = new double[leafSize];
+		for (int i = from; i < to; i++) {
+			heap.clear();
+			search(0, nodes.length, 0, i, heap, 1 + epsilon, scratch);
+			nodes[i].updateCoreDistance(heap, maxEpsilon);
+			consumer.accept(i, heap);
+		}
+	}
+	
+	/**
+	 * Finds the k nearest neighbors of every node with a {@link UniformGrid}
+	 * instead of the tree, which is faster for data of fairly even density.
+	 * If the density is too uneven for a grid, searches the tree instead.
+	 * Either way the neighbor sets are the same as those of
+	 * {@link #findKNN()}, up to ties.
+	 * 
+	 * @param pool the fork-join pool to run the searches on, or null to
+	 *          search on the calling thread
+	 * @return true if the grid was used, false if the tree was searched
+	 */
+	public boolean findKNNOnGrid(ForkJoinPool pool) {
+		checkBulkLoaded();
+		if (nodes.length == 0) {
+			return false;
+		}
+		UniformGrid grid = UniformGrid.create(coords, nodes[0].getK(), metric);
+		if (grid == null) {
+			if (pool == null) {
+				findKNN();
+			} else {
+				findKNN(pool);
 			}
-//			startTime = System.currentTimeMillis();
-			ListIterator<KdNode> unwind = path.listIterator(path.size()) ; 
-			while (unwind.hasPrevious()) {
-				KdNode current = (unwind.previous());
-				if(!node.equals(current)){
-					Double addCurrentDistance = node.addNeighbor(current);
-					if(addCurrentDistance != null){
-						current.addNeighbor(node,addCurrentDistance);
-					}else{
-						current.addNeighbor(node);
-					}
-				}
+			return false;
+		}
+		grid.findKNN(nodes, 1 + epsilon, maxEpsilon, pool);
+		neighborsFound = true;
+		return true;
+	}
+	
+	/**
+	 * Exact k-nearest-neighbor search for a single node. Only the neighbor set
+	 * of <code>node</code> is modified, which makes concurrent calls for
+	 * different nodes safe.
+	 * 
+	 * @param node the node to find neighbors for
+	 * @param scratch room for the distances to one leaf bucket
+	 */
+	private void searchNeighbors(KdNode node, double[] scratch) {
+		search(0, nodes.length, 0, node.getLabel(), node.getNeighbors(), 1 + epsilon, scratch);
+		updateCoreDistance(node);
+	}
+	
+	/**
+	 * Re-reads the core distance of a node from its neighbors, capped at
+	 * {@link #getMaxEpsilon()}.
+	 */
+	void updateCoreDistance(KdNode node) {
+		node.updateCoreDistance(node.getNeighbors(), maxEpsilon);
+	}
+	
+	/**
+	 * Searches the subtree covering positions <code>[lo, hi)</code> of the
+	 * tree's implicit layout, where a node's label is its position.
+	 * Descends to the side of each split that contains the query first,
+	 * and only visits the other side if the heap is not full yet or the
+	 * closest possible point on that side, times <code>pruneFactor</code>,
+	 * could beat the current k-th distance and lies within
+	 * {@link #getMaxEpsilon()}. Left subtrees hold values up to
+	 * the split value and right subtrees hold values from it, so the metric's
+	 * bound to the split line is a true lower bound for the whole far subtree.
+	 * Leaf buckets are scanned in one pass over their coordinates.
+	 */
+	private void search(int lo, int hi, int depth, int query, NeighborHeap heap, double pruneFactor, double[] scratch) {
+		double qx = coords[2 * query];
+		double qy = coords[2 * query + 1];
+		while (hi - lo > leafSize) {
+			int mid = (lo + hi) >>> 1;
+			if (mid != query) {
+				heap.offerNew(mid, distance(query, mid));
 			}
-			
-			if(!envQuery){
-//				System.out.println("Number of values to compare: " + path.size());
-//				System.out.println("Distance Comparisons: " + (System.currentTimeMillis() - startTime));
-//				startTime = System.currentTimeMillis();
-				node.calculateBBox();
-				path = query(node.getBbox());
-//				System.out.println("Second Envelope Query: " + (System.currentTimeMillis() - startTime));
-//				startTime = System.currentTimeMillis();
-				unwind = path.listIterator(path.size()) ; 
-				while (unwind.hasPrevious()) {
-					KdNode current = (unwind.previous());
-					if(!node.equals(current)){
-						Double addCurrentDistance = node.addNeighbor(current);
-						if(addCurrentDistance != null){
-							current.addNeighbor(node,addCurrentDistance);
-						}else{
-							current.addNeighbor(node);
-						}
-//						if(addCurrentDistance!= null){
-//							System.out.println("Added in post envelope query: " + node + "\nCurrent: " + current );
-//						}
-					}
+			int axis = depth & 1;
+			double split = coords[2 * mid + axis];
+			boolean nearLeft = (axis == 0 ? qx : qy) < split;
+			if (nearLeft) {
+				search(lo, mid, depth + 1, query, heap, pruneFactor, scratch);
+			} else {
+				search(mid + 1, hi, depth + 1, query, heap, pruneFactor, scratch);
+			}
+			double bound = metric.splitLowerBound(qx, qy, axis, split);
+			if (bound > maxEpsilon || heap.isFull() && pruneFactor * bound >= heap.maxDistance()) {
+				return;
+			}
+			if (nearLeft) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+			depth++;
+		}
+		scanBucket(lo, hi, query, heap, scratch);
+	}
+	
+	/**
+	 * Offers every point at positions <code>[lo, hi)</code> other than the
+	 * query to the heap. With the haversine kernel, candidates are compared
+	 * to the current k-th distance as haversine terms and only the ones that
+	 * can enter the heap are converted to km.
+	 */
+	private void scanBucket(int lo, int hi, int query, NeighborHeap heap, double[] scratch) {
+		if (distances != null) {
+			distances.offer(query, lo, hi, null, heap, scratch);
+			return;
+		}
+		double qx = coords[2 * query];
+		double qy = coords[2 * query + 1];
+		for (int i = lo; i < hi; i++) {
+			scratch[i - lo] = metric.distance(qx, qy, coords[2 * i], coords[2 * i + 1]);
+		}
+		for (int i = lo; i < hi; i++) {
+			if (i != query) {
+				heap.offerNew(i, scratch[i - lo]);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the distance between the points at two positions, through the
+	 * cached {@link HaversineKernel} for the haversine metric.
+	 */
+	double distance(int position, int other) {
+		if (distances != null) {
+			return distances.distance(position, other);
+		}
+		return metric.distance(coords[2 * position], coords[2 * position + 1], coords[2 * other], coords[2 * other + 1]);
+	}
+	
+	public DistanceMetric getMetric() {
+		return metric;
+	}
+	
+	/**
+	 * Returns the interleaved x, y coordinates of the bulk-loaded points in
+	 * the order of the tree's implicit layout. The array is not copied and
+	 * must not be modified.
+	 */
+	double[] getCoordinates() {
+		checkBulkLoaded();
+		return coords;
+	}
+	
+	/**
+	 * Compares the core distances found by {@link #findKNN()} against an
+	 * exact search for an evenly spaced sample of the nodes. The nodes are not
+	 * modified. Useful to see how far an approximate tree drifted.
+	 * 
+	 * @param sampleSize the number of nodes to check
+	 * @return the observed drift
+	 */
+	public CoreDistanceDrift measureDrift(int sampleSize) {
+		checkBulkLoaded();
+		ArrayList<KdNode> nodes = getAllNodes();
+		CoreDistanceDrift drift = new CoreDistanceDrift();
+		if (nodes.isEmpty() || sampleSize <= 0) {
+			return drift;
+		}
+		NeighborHeap exact = new NeighborHeap(nodes.get(0).getK());
+		double[] scratch = new double[leafSize];
+		double step = Math.max(1.0, nodes.size() / (double) sampleSize);
+		for (double i = 0; i < nodes.size(); i += step) {
+			KdNode node = nodes.get((int) i);
+			exact.clear();
+			search(0, this.nodes.length, 0, node.getLabel(), exact, 1, scratch);
+			drift.add(node.getCoreDistance(), exact.maxDistance());
+		}
+		return drift;
+	}
+	
+	/**
+	 * Splits a range of nodes in half until it is small enough to search
+	 * sequentially.
+	 */
+	@SuppressWarnings("serial")
+	private static class FindKNNTask extends RecursiveAction {
+		private static final int THRESHOLD = 1024;
+		
+		private final NearestKdTree tree;
+		private final List<KdNode> nodes;
+		private final int from;
+		private final int to;
+		
+		FindKNNTask(NearestKdTree tree, List<KdNode> nodes, int from, int to) {
+			this.tree = tree;
+			this.nodes = nodes;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				double[] scratch = new double[tree.leafSize];
+				for (int i = from; i < to; i++) {
+					tree.searchNeighbors(nodes.get(i), scratch);
 				}
-//				System.out.println("Second Number of values to compare: " + path.size());
-//				System.out.println(node.hasKNeighbors() + " : " + node.getNeighbors().size());
-//				System.out.println("Second Distance Comparisons: " + (System.currentTimeMillis() - startTime));
+				return;
 			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new FindKNNTask(tree, nodes, from, mid),
+					new FindKNNTask(tree, nodes, mid, to));
+		}
+	}
+	
+	
+	/**
+	 * Splits a range of positions in half until it is small enough to search
+	 * sequentially, see {@link NearestKdTree#findCoreDistances}.
+	 */
+	@SuppressWarnings("serial")
+	private static class CoreDistanceTask extends RecursiveAction {
+		private static final int THRESHOLD = 1024;
+		
+		private final NearestKdTree tree;
+		private final NeighborConsumer consumer;
+		private final int from;
+		private final int to;
+		
+		CoreDistanceTask(NearestKdTree tree, NeighborConsumer consumer, int from, int to) {
+			this.tree = tree;
+			this.consumer = consumer;
+			this.from = from;
+			this.to = to;
+		}
+		
+		@Override
+		protected void compute() {
+			if (to - from <= THRESHOLD) {
+				tree.findCoreDistances(consumer, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new CoreDistanceTask(tree, consumer, from, mid),
+					new CoreDistanceTask(tree, consumer, mid, to));
 		}
 	}
 	
@@ -424,6 +750,32 @@ public class NearestKdTree{
 		this.tolerance = tolerance;
 	}
 
+	public double getEpsilon() {
+		return epsilon;
+	}
+
+	public void setEpsilon(double epsilon) {
+		this.epsilon = epsilon;
+	}
+	
+	public double getMaxEpsilon() {
+		return maxEpsilon;
+	}
+	
+	/**
+	 * Limits neighbor searches to the given radius. Parts of the tree
+	 * farther than <code>maxEpsilon</code> from a point are never searched,
+	 * and a point with fewer than k neighbors within it gets an infinite
+	 * core distance, so edges longer than <code>maxEpsilon</code> never enter
+	 * the mutual reachability graph and its minimum spanning tree becomes a
+	 * forest. Set this before searching; the default is no limit.
+	 * 
+	 * @param maxEpsilon the search radius, in the units of the metric
+	 */
+	public void setMaxEpsilon(double maxEpsilon) {
+		this.maxEpsilon = maxEpsilon;
+	}
+
 	public KdNode getLast() {
 		return last;
 	}
@@ -440,6 +792,231 @@ public class NearestKdTree{
 		this.numberOfNodes = numberOfNodes;
 	}
 	
+	/**
+	 * Returns the node with the given label. Labels of deleted nodes are not
+	 * reused, so this also returns deleted nodes.
+	 */
+	public KdNode getNode(int label) {
+		if (label < nodes.length) {
+			return nodes[label];
+		}
+		return insertedNodes.get(label - nodes.length);
+	}
+	
+	/**
+	 * Returns one more than the largest label given out so far. Nodes
+	 * added by {@link #insert(Coordinate)} are labelled after the ones the
+	 * tree was built with.
+	 */
+	public int getLabelCount() {
+		return insertedNodes == null ? nodes.length : nodes.length + insertedNodes.size();
+	}
+	
+	/**
+	 * Adds a point to the tree, keeping the neighbors found by
+	 * {@link #findKNN()} exact. The new node gets its own k nearest
+	 * neighbors, and only the nodes it is strictly closer to than their
+	 * current core distance take it as a neighbor; they are found by
+	 * searching with the largest core distance of each subtree, so distant
+	 * nodes are never visited. A point that snaps to the location of an
+	 * existing node increases that node's count instead.
+	 * 
+	 * <p>The tree keeps the points it was built with in place and puts
+	 * inserted points into levels of 64, 128, 256, ... points. Each insert
+	 * merges the full levels below the first one with room into it and
+	 * rebuilds it, which is the only rebalancing, so an insert costs
+	 * O(log<sup>2</sup> n) amortized besides the neighbor search. Searches
+	 * after the first insert or delete are exact even if the tree was built
+	 * with an epsilon.</p>
+	 * 
+	 * @param point the point to add
+	 * @return the node at the point's location
+	 * @throws IllegalStateException if {@link #findKNN()} or
+	 *           {@link #findKNNOnGrid(ForkJoinPool)} has not run
+	 */
+	public KdNode insert(Coordinate point) {
+		startUpdates();
+		Coordinate snapped = new Coordinate(SnappedPoints.snap(point.x, tolerance), SnappedPoints.snap(point.y, tolerance));
+		int label = getLabelCount();
+		KdNode node = new KdNode(snapped, 0, k, label);
+		NeighborHeap neighbors = node.getNeighbors();
+		searchAll(snapped.x, snapped.y, label, neighbors);
+		for (int i = 0; i < neighbors.size(); i++) {
+			KdNode other = getNode(neighbors.getLabel(i));
+			if (neighbors.getDistance(i) == 0 && other.getCoordinate().equals2D(snapped)) {
+				other.increment();
+				return other;
+			}
+		}
+		updateCoreDistance(node);
+		
+		insertedNodes.add(node);
+		if (label >= deleted.length) {
+			deleted = Arrays.copyOf(deleted, 2 * label);
+			levelOf = Arrays.copyOf(levelOf, 2 * label);
+		}
+		if (bulk != null) {
+			bulk.offerInserted(node, this, deleted);
+		}
+		for (KdLevel level : levels) {
+			if (level != null) {
+				level.offerInserted(node, this, deleted);
+			}
+		}
+		IntArrayList carry = new IntArrayList();
+		carry.add(label);
+		addToLevels(carry);
+		
+		numberOfNodes++;
+		if (treeBBox == null) {
+			treeBBox = new Envelope();
+		}
+		treeBBox.expandToInclude(snapped);
+		return node;
+	}
+	
+	/**
+	 * Removes a node from the tree, keeping the neighbors of the remaining
+	 * nodes exact. Only the nodes that had it as a neighbor search again.
+	 * When half of the points of a level have been deleted the level is
+	 * rebuilt without them; for the points the tree was built with, they
+	 * are moved into the levels of inserted points.
+	 * 
+	 * @param node a node of this tree
+	 * @return false if the node was already deleted
+	 * @throws IllegalStateException if {@link #findKNN()} or
+	 *           {@link #findKNNOnGrid(ForkJoinPool)} has not run
+	 */
+	public boolean delete(KdNode node) {
+		startUpdates();
+		int label = node.getLabel();
+		if (label >= getLabelCount() || getNode(label) != node || deleted[label]) {
+			return false;
+		}
+		deleted[label] = true;
+		KdLevel where = levelOf[label] < 0 ? bulk : levels.get(levelOf[label]);
+		where.markDeleted();
+		if (bulk != null) {
+			bulk.repairDeleted(node, this, deleted);
+		}
+		for (KdLevel level : levels) {
+			if (level != null) {
+				level.repairDeleted(node, this, deleted);
+			}
+		}
+		numberOfNodes--;
+		
+		if (2 * where.getDeleted() > where.size()) {
+			IntArrayList live = new IntArrayList();
+			where.collectLive(live, deleted);
+			if (where == bulk) {
+				bulk = null;
+				root = null;
+				if (live.size() > 0) {
+					addToLevels(live);
+				}
+			} else {
+				int index = levelOf[label];
+				levels.set(index, live.size() == 0 ? null : buildLevel(live, index));
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Tests whether the node with a label was deleted.
+	 */
+	public boolean isDeleted(int label) {
+		return deleted != null && deleted[label];
+	}
+	
+	/**
+	 * Replaces the neighbors of a node with a fresh search of all levels.
+	 */
+	void searchAgain(KdNode node) {
+		NeighborHeap neighbors = node.getNeighbors();
+		neighbors.clear();
+		searchAll(node.getX(), node.getY(), node.getLabel(), neighbors);
+		updateCoreDistance(node);
+	}
+	
+	private void searchAll(double x, double y, int exclude, NeighborHeap heap) {
+		KdLevel.Query query = new KdLevel.Query(x, y, exclude, heap);
+		if (bulk != null) {
+			bulk.search(query, deleted);
+		}
+		for (KdLevel level : levels) {
+			if (level != null) {
+				level.search(query, deleted);
+			}
+		}
+	}
+	
+	/**
+	 * Puts the given nodes into the first level that is empty and large
+	 * enough, merging every full level below it into the same level.
+	 */
+	private void addToLevels(IntArrayList carry) {
+		int index = 0;
+		while (true) {
+			if (index == levels.size()) {
+				levels.add(null);
+			}
+			KdLevel level = levels.get(index);
+			if (level != null) {
+				level.collectLive(carry, deleted);
+				levels.set(index, null);
+			} else if (carry.size() <= LEVEL_BASE << Math.min(index, 30)) {
+				break;
+			}
+			index++;
+		}
+		levels.set(index, buildLevel(carry, index));
+	}
+	
+	private KdLevel buildLevel(IntArrayList labels, int index) {
+		for (int i = 0; i < labels.size(); i++) {
+			levelOf[labels.get(i)] = index;
+		}
+		return KdLevel.build(labels.toArray(), leafSize, metric, this);
+	}
+	
+	/**
+	 * Prepares the structures for inserts and deletes on first use. The
+	 * points the tree was built with become the bulk level, whose subtree
+	 * core distance bounds are computed from the neighbors found so far.
+	 * 
+	 * @throws IllegalStateException if the neighbors of the points the tree
+	 *           was built with were never found, or were streamed away by
+	 *           {@link #findCoreDistances(NeighborConsumer, ForkJoinPool)}
+	 */
+	private void startUpdates() {
+		if (levels != null) {
+			return;
+		}
+		if (!neighborsFound && nodes.length > 0) {
+			throw new IllegalStateException("Find the neighbors with findKNN or findKNNOnGrid before insert and delete");
+		}
+		levels = new ArrayList<KdLevel>();
+		insertedNodes = new ArrayList<KdNode>();
+		deleted = new boolean[Math.max(16, nodes.length)];
+		levelOf = new int[deleted.length];
+		Arrays.fill(levelOf, -1);
+		if (nodes.length > 0) {
+			bulk = new KdLevel(coords, null, leafSize, metric, distances, this);
+		}
+	}
+	
+	/**
+	 * The bulk searches run over the layout the tree was built with and do
+	 * not know about inserted or deleted points.
+	 */
+	private void checkBulkLoaded() {
+		if (levels != null) {
+			throw new IllegalStateException("The tree was updated; insert and delete keep neighbors up to date");
+		}
+	}
+	
 	public ArrayList<KdNode> getAllNodes(){
 		ArrayList<KdNode> visitor = new ArrayList<KdNode>();
 		query(treeBBox,visitor);
@@ -447,125 +1024,137 @@ public class NearestKdTree{
 	}
 
 	/**
-	 * Recursively creates a balanced set of nodes given a list of 
-	 * points. The list of points is sorted by the axis which is 
-	 * being used for the split on this level. The median value
-	 * is taken for this node. The remaining points are divided into
-	 * left and right lists, which are processed by another call to
-	 * this algorithm. The node returned by this 
+	 * Creates a balanced set of nodes given a list of points. The points
+	 * are arranged into the implicit layout of {@link KdTreeLayout}, which
+	 * picks the median on the split axis of each level with quickselect
+	 * instead of sorting, and the nodes are then linked up in one pass.
+	 * The tree has the same shape as one built by sorting each level, with
+	 * one point per node, and each node is labelled with its position in the
+	 * layout, so labels run from zero and are independent of any other tree.
+	 * The points array is not modified.
 	 * @param points List of points to make into a balanced tree
 	 * @param level level of the tree (root is zero).
 	 * @return the root of the produced tree.
 	 * @since 1.12
 	 */
-	@SuppressWarnings("unchecked")
 	protected static KdNode makeTree(Coordinate[]points, int level, int k) {
-		KdNode middle = null;
-		KdNode left = null;
-		KdNode right = null;
-		int axis = level %2 ; 
-		CoordinateComparator sortAxis = 
-				CoordinateComparator.getComparator(axis) ; 
-		
-		// Sort the list 
-		Arrays.sort(points, sortAxis) ; 
-		
-		// If the list is bigger than three points, recurse.
-		if (points.length > 3) { 
-			int median_idx = points.length/2 ; 
-			middle = new KdNode(points[median_idx],axis, k) ;
-			
-			Coordinate []leftPoints = new Coordinate[median_idx];  
-			Coordinate []rightPoints = new Coordinate[points.length-(median_idx+1)] ; 
-			
-			// split the list into "left" and "right"
-			for (int i=0; i<median_idx; i++) {
-				leftPoints[i] = points[i] ; 
-			}		
-			for (int i=median_idx+1; i<points.length; i++) { 
-				rightPoints[i-(median_idx+1)] = points[i] ; 
+		double[] coords = new double[2 * points.length];
+		int[] index = new int[points.length];
+		for (int i = 0; i < points.length; i++) {
+			coords[2 * i] = points[i].x;
+			coords[2 * i + 1] = points[i].y;
+			index[i] = i;
+		}
+		KdTreeLayout.build(coords, 2, index, level);
+		return linkNodes(points, null, index, new KdNode[points.length], 0, points.length, level, k, 1);
+	}
+	
+	/**
+	 * Links the nodes covering positions <code>[lo, hi)</code> of an
+	 * arranged layout. A range of at most <code>leafSize</code> points
+	 * becomes one leaf whose bucket holds all of them.
+	 * 
+	 * @param counts the number of input points at each location, or null if
+	 *          every point stands for one
+	 * @param nodes receives the node at each position
+	 */
+	private static KdNode linkNodes(Coordinate[] points, int[] counts, int[] index, KdNode[] nodes,
+			int lo, int hi, int level, int k, int leafSize) {
+		if (lo >= hi) {
+			return null;
+		}
+		if (hi - lo <= leafSize) {
+			for (int i = lo; i < hi; i++) {
+				nodes[i] = new KdNode(points[index[i]], level % 2, k, i);
+				if (counts != null) {
+					nodes[i].setCount(counts[index[i]]);
+				}
+				if (i > lo) {
+					nodes[i].setParent(nodes[lo]);
+				}
 			}
-			left = makeTree(leftPoints,level+1,k);
-			right = makeTree(rightPoints,level+1,k);
-			middle.setLeft(left) ; 
-			left.setParent(middle);
-			middle.setRight(right);
-			right.setParent(middle);
-		} else if (points.length == 3) {
-			// if exactly three points, we know how this plays out
-			middle = new KdNode(points[1],axis,k) ; 
-			axis = (axis+1) %2 ;
-			left = new KdNode(points[0],axis,k);
-			right = new KdNode(points[2],axis,k);
-			
+			nodes[lo].setBucketSize(hi - lo);
+			return nodes[lo];
+		}
+		int mid = (lo + hi) >>> 1;
+		KdNode middle = new KdNode(points[index[mid]], level % 2, k, mid);
+		nodes[mid] = middle;
+		if (counts != null) {
+			middle.setCount(counts[index[mid]]);
+		}
+		KdNode left = linkNodes(points, counts, index, nodes, lo, mid, level + 1, k, leafSize);
+		KdNode right = linkNodes(points, counts, index, nodes, mid + 1, hi, level + 1, k, leafSize);
+		if (left != null) {
 			middle.setLeft(left);
 			left.setParent(middle);
+		}
+		if (right != null) {
 			middle.setRight(right);
 			right.setParent(middle);
-		} else if (points.length == 2) { 
-			// if exactly two points, we can also just hardcode it
-			middle = new KdNode(points[1],axis,k) ;
-			axis = (axis+1)%2 ;
-			left = new KdNode(points[0],axis,k);
-			middle.setLeft(left);
-			left.setParent(middle);
-		} else if (points.length == 1) { 
-			// we should only get here if the list starts out with 
-			// length one.
-			middle = new KdNode(points[0],axis,k);  
 		}
-		
-		return middle ; 
+		return middle;
 	}
 	
 	/**
 	 * Factory method to create a balanced kd-tree from an array of 
-	 * {@link Coordinate}s. The algorithm used is recursive. The points 
-	 * array is sorted based on the x coordinate when this call completes.
+	 * {@link Coordinate}s. Points are snapped to the tolerance grid and
+	 * merged with {@link SnappedPoints}, which leaves the array untouched,
+	 * and each node counts the input points merged into it. Large trees are
+	 * arranged on several threads. The arranged coordinates are kept in
+	 * layout order, so the points of each leaf bucket are contiguous.
 	 * @param points Points to index with a kd-tree.
 	 * @return Balanced Kd tree containing all the points in the array. 
 	 * @since 1.12
 	 */
 	private void loadTree(Coordinate []points,int k) { 
-		// sift for duplicates
-		TreeSet<Coordinate> uniquePoints = new TreeSet<Coordinate>() ;
+		this.k = k;
+		SnappedPoints snapped = SnappedPoints.snap(points, tolerance);
+		int n = snapped.size();
+		Coordinate[] unique = snapped.toCoordinates();
+		
 		double minX = Double.MAX_VALUE;
 		double minY = Double.MAX_VALUE;
-		double maxX = Double.MIN_VALUE;
-		double maxY = Double.MIN_VALUE;
-		
-		for (Coordinate point : points) {
-			if(tolerance != Double.NaN){
-				point.x = Math.round(point.x / tolerance) / (1/tolerance);
-				point.y = Math.round(point.y / tolerance) / (1/tolerance);
-			}
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		this.coords = new double[2 * n];
+		int[] index = new int[n];
+		for (int i = 0; i < n; i++) {
+			Coordinate point = unique[i];
 			if(point.x < minX) minX = point.x;
 			if(point.y < minY) minY = point.y;
 			if(point.x > maxX) maxX = point.x;
 			if(point.y > maxY) maxY = point.y;
-			
-			uniquePoints.add(point) ; 
+			coords[2 * i] = point.x;
+			coords[2 * i + 1] = point.y;
+			index[i] = i;
 		}
-		Coordinate []unique = new Coordinate[uniquePoints.size()];
-		uniquePoints.toArray(unique); 
 		
-		this.root = makeTree(unique,0,k);		
-		this.numberOfNodes = unique.length;
-		this.treeBBox = new Envelope(new Coordinate(minX,minY), new Coordinate(maxX,maxY));
+		KdTreeLayout.buildParallel(coords, 2, index, 0, leafSize);
+		this.nodes = new KdNode[n];
+		this.root = linkNodes(unique, snapped.getCounts(), index, nodes, 0, n, 0, k, leafSize);
+		if (metric == DistanceMetric.HAVERSINE) {
+			this.distances = new HaversineKernel(n);
+			for (int i = 0; i < n; i++) {
+				distances.set(i, coords[2 * i], coords[2 * i + 1]);
+			}
+		}
+		this.numberOfNodes = n;
+		this.treeBBox = n == 0 ? new Envelope()
+				: new Envelope(new Coordinate(minX,minY), new Coordinate(maxX,maxY));
+	}
+	
+	public int getLeafSize() {
+		return leafSize;
 	}
 	
 	public static void main(String[] args) {
 		// sift for duplicates
 		Coordinate[] points = {new Coordinate(24.37623,48.911923), new Coordinate(24.37619,48.911899)};
-		TreeSet<Coordinate> uniquePoints = new TreeSet<Coordinate>() ; 
-		for (Coordinate point : points) {
-			point.x = Math.round(point.x/.001) / (1/.001);
-			point.y = Math.round(point.y/.001) / (1/.001);
-			System.out.println(point);
-			uniquePoints.add(point) ; 
+		SnappedPoints uniquePoints = SnappedPoints.snap(points, .001);
+		for (int i = 0; i < uniquePoints.size(); i++) {
+			System.out.println(uniquePoints.getX(i) + ", " + uniquePoints.getY(i) + " x" + uniquePoints.getCount(i));
 		}
 		System.out.println("Size: " + uniquePoints.size());
-//		Coordinate []unique = (Coordinate[])(uniquePoints.toArray(coordType));
 	}
 
 
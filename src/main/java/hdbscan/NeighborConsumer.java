@@ -0,0 +1,19 @@
+package main.java.hdbscan;
+
+/**
+ * Receives the k nearest neighbors of each point as soon as its search is
+ * finished, so that they need not be kept in the tree. See
+ * {@link NearestKdTree#findCoreDistances}.
+ */
+public interface NeighborConsumer {
+
+	/**
+	 * Called once per point with its nearest neighbors. When searches run
+	 * on several threads this is called concurrently for different points.
+	 *
+	 * @param label the label of the point
+	 * @param neighbors the neighbors found, in heap order; the heap is reused
+	 *          for the next point once this returns
+	 */
+	void accept(int label, NeighborHeap neighbors);
+}
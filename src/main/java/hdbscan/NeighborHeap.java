@@ -0,0 +1,213 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+
+/**
+ * A bounded max-heap of the nearest neighbors found so far for a single point.
+ * Neighbors are kept as parallel primitive arrays of labels and distances, so a
+ * heap of capacity k costs 12k bytes plus two array headers. The farthest
+ * neighbor sits at the root, which makes the core distance of a full heap
+ * available in constant time.
+ *
+ * <p>Neighbors at exactly the same distance are all kept; a candidate is only
+ * rejected when the heap is full and the candidate is not strictly closer than
+ * the current farthest neighbor, or when its label is already present. The
+ * bulk searches, which visit every point at most once per query, offer through
+ * {@link #offerNew(int, double)} and skip that label check.</p>
+ */
+public class NeighborHeap {
+
+	private final int[] labels;
+	private final double[] distances;
+	private int size;
+
+	/**
+	 * Creates an empty heap.
+	 *
+	 * @param capacity the maximum number of neighbors to keep
+	 */
+	public NeighborHeap(int capacity) {
+		this.labels = new int[capacity];
+		this.distances = new double[capacity];
+		this.size = 0;
+	}
+
+	/**
+	 * Offers a neighbor to the heap. A candidate close enough to enter is
+	 * first checked against the labels already kept, which is O(k), and then
+	 * added in O(log k).
+	 *
+	 * @param label the label of the neighbor
+	 * @param distance the distance to the neighbor
+	 * @return true if the neighbor was added
+	 */
+	public boolean offer(int label, double distance) {
+		return added(offer(labels, distances, 0, size, labels.length, label, distance));
+	}
+
+	/**
+	 * Offers a neighbor whose label is not in the heap, as in a search that
+	 * visits every point at most once. Skips the label check of
+	 * {@link #offer(int, double)}, so it is O(log k) when accepted.
+	 *
+	 * @param label the label of the neighbor
+	 * @param distance the distance to the neighbor
+	 * @return true if the neighbor was added
+	 */
+	public boolean offerNew(int label, double distance) {
+		return added(offerNew(labels, distances, 0, size, labels.length, label, distance));
+	}
+
+	private boolean added(boolean accepted) {
+		if (accepted && size < labels.length) {
+			size++;
+		}
+		return accepted;
+	}
+
+	/**
+	 * Tests whether a neighbor with the given label is in the heap.
+	 */
+	public boolean contains(int label) {
+		return contains(labels, 0, size, label);
+	}
+
+	/**
+	 * Returns the distance to the farthest neighbor kept, or
+	 * {@link Double#MAX_VALUE} if the heap is empty.
+	 */
+	public double maxDistance() {
+		return size == 0 ? Double.MAX_VALUE : distances[0];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return labels.length;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isFull() {
+		return size == labels.length;
+	}
+
+	/**
+	 * Returns the label at position i of the heap. Positions are in heap order,
+	 * not in order of distance.
+	 */
+	public int getLabel(int i) {
+		return labels[i];
+	}
+
+	/**
+	 * Returns the distance at position i of the heap. Positions are in heap
+	 * order, not in order of distance.
+	 */
+	public double getDistance(int i) {
+		return distances[i];
+	}
+
+	/**
+	 * Returns a copy of the neighbor distances in ascending order.
+	 */
+	public double[] sortedDistances() {
+		double[] sorted = Arrays.copyOf(distances, size);
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Offers a neighbor to a heap stored in a segment of shared arrays, so
+	 * that many heaps can live in one pair of arrays. The segment starts at
+	 * <code>offset</code> and holds <code>size</code> of at most
+	 * <code>capacity</code> entries. The caller tracks the size, which grows
+	 * by one when the neighbor is accepted into a heap that was not full.
+	 *
+	 * @return true if the neighbor was added
+	 */
+	static boolean offer(int[] labels, double[] distances, int offset, int size, int capacity,
+			int label, double distance) {
+		if (size == capacity && (size == 0 || distance >= distances[offset])) {
+			return false;
+		}
+		if (contains(labels, offset, size, label)) {
+			return false;
+		}
+		return offerNew(labels, distances, offset, size, capacity, label, distance);
+	}
+
+	/**
+	 * Like {@link #offer(int[], double[], int, int, int, int, double)}, for a
+	 * neighbor whose label is not in the heap.
+	 */
+	static boolean offerNew(int[] labels, double[] distances, int offset, int size, int capacity,
+			int label, double distance) {
+		if (size == capacity) {
+			if (size == 0 || distance >= distances[offset]) {
+				return false;
+			}
+			labels[offset] = label;
+			distances[offset] = distance;
+			siftDown(labels, distances, offset, size, 0);
+			return true;
+		}
+		labels[offset + size] = label;
+		distances[offset + size] = distance;
+		siftUp(labels, distances, offset, size);
+		return true;
+	}
+
+	static boolean contains(int[] labels, int offset, int size, int label) {
+		for (int i = offset; i < offset + size; i++) {
+			if (labels[i] == label) return true;
+		}
+		return false;
+	}
+
+	private static void siftUp(int[] labels, double[] distances, int offset, int i) {
+		int label = labels[offset + i];
+		double distance = distances[offset + i];
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (distances[offset + parent] >= distance) break;
+			labels[offset + i] = labels[offset + parent];
+			distances[offset + i] = distances[offset + parent];
+			i = parent;
+		}
+		labels[offset + i] = label;
+		distances[offset + i] = distance;
+	}
+
+	private static void siftDown(int[] labels, double[] distances, int offset, int size, int i) {
+		int label = labels[offset + i];
+		double distance = distances[offset + i];
+		int half = size >>> 1;
+		while (i < half) {
+			int child = 2 * i + 1;
+			int right = child + 1;
+			if (right < size && distances[offset + right] > distances[offset + child]) {
+				child = right;
+			}
+			if (distance >= distances[offset + child]) break;
+			labels[offset + i] = labels[offset + child];
+			distances[offset + i] = distances[offset + child];
+			i = child;
+		}
+		labels[offset + i] = label;
+		distances[offset + i] = distance;
+	}
+
+	@Override
+	public String toString() {
+		return "NeighborHeap [size=" + size + ", distances=" + Arrays.toString(sortedDistances()) + "]";
+	}
+}
@@ -0,0 +1,282 @@
+package main.java.hdbscan;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>A minimum spanning forest of an {@link EdgeList}, found by Bor&#367;vka
+ * rounds over the primitive edge arrays on a {@link ForkJoinPool}.</p>
+ *
+ * <p>Each round has three parallel passes. The first reads chunks of the
+ * edges still alive and finds the cheapest edge leaving every component:
+ * each thread compares its edges against the best one recorded for both end
+ * components and replaces it with a compare-and-set. The second joins each
+ * component along its cheapest edge in a {@link ConcurrentUnionFind}. The
+ * third drops edges whose ends are now in the same component, so later
+ * rounds only read the edges that can still join something. Ties in weight
+ * are broken by edge index, which keeps the chosen edges free of cycles and
+ * makes the forest independent of the number of threads.</p>
+ *
+ * <p>Unlike {@link edu.princeton.cs.algorithms.BoruvkaMST} there is no
+ * {@link edu.princeton.cs.algorithms.Edge} object per edge, and the result
+ * is an {@link EdgeList} of at most <code>numVertices - 1</code> edges, in
+ * the order they appear in the input.</p>
+ */
+public final class ParallelBoruvkaMST implements SpanningForest {
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int FIND_CHEAPEST = 0;
+	private static final int LINK = 1;
+	private static final int COUNT_ALIVE = 2;
+	private static final int COPY_ALIVE = 3;
+
+	private final EdgeList edges;
+	private final int numVertices;
+	private final ForkJoinPool pool;
+	private final ConcurrentUnionFind components;
+	private final AtomicIntegerArray cheapest;
+	private final int[] picked;
+	private final AtomicInteger pickedCount;
+	private int[] alive;
+	private int aliveCount;
+	private int[] aliveChunkCounts;
+	private int[] nextAlive;
+
+	private EdgeList forest;
+	private double weight;
+	private int componentCount;
+
+	/**
+	 * Finds a minimum spanning forest of a graph.
+	 *
+	 * @param edges the edges of the graph, which are not modified
+	 * @param numVertices the number of vertices, all labels being below it
+	 * @param pool the pool to run rounds on, or null to run them on the
+	 *          calling thread
+	 */
+	public ParallelBoruvkaMST(EdgeList edges, int numVertices, ForkJoinPool pool) {
+		this.edges = edges;
+		this.numVertices = numVertices;
+		this.pool = pool;
+		this.components = new ConcurrentUnionFind(numVertices);
+		this.cheapest = new AtomicIntegerArray(numVertices);
+		this.picked = new int[Math.max(0, numVertices - 1)];
+		this.pickedCount = new AtomicInteger();
+		for (int v = 0; v < numVertices; v++) {
+			cheapest.set(v, -1);
+		}
+		// The first round reads the edges directly rather than an index list
+		this.alive = null;
+		this.aliveCount = edges.size();
+		run();
+	}
+
+	private void run() {
+		while (aliveCount > 0) {
+			runPass(FIND_CHEAPEST, chunkCount(aliveCount));
+			int before = pickedCount.get();
+			runPass(LINK, chunkCount(numVertices));
+			if (pickedCount.get() == before) {
+				break;
+			}
+			compact();
+		}
+
+		int joined = pickedCount.get();
+		// Threads append in any order, the input order is the same for all
+		Arrays.sort(picked, 0, joined);
+		forest = new EdgeList(joined);
+		weight = 0;
+		for (int i = 0; i < joined; i++) {
+			int e = picked[i];
+			forest.add(edges.getFirst(e), edges.getSecond(e), edges.getWeight(e));
+			weight += edges.getWeight(e);
+		}
+		componentCount = numVertices - joined;
+		alive = null;
+		nextAlive = null;
+	}
+
+	/**
+	 * Joins a component along its cheapest edge, unless the component at the
+	 * other end already joined along the same edge. The cheapest edges of a
+	 * round form a forest, so each of them joins two components exactly once
+	 * whatever order the threads link in.
+	 */
+	private void link(int root, int e) {
+		cheapest.set(root, -1);
+		if (components.union(edges.getFirst(e), edges.getSecond(e))) {
+			picked[pickedCount.getAndIncrement()] = e;
+		}
+	}
+
+	private int chunkCount(int count) {
+		return (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+	}
+
+	private void runPass(int pass, int chunks) {
+		if (chunks == 0) {
+			return;
+		}
+		if (pool == null) {
+			for (int chunk = 0; chunk < chunks; chunk++) {
+				runChunk(pass, chunk);
+			}
+		} else {
+			pool.invoke(new ChunkTask(this, pass, 0, chunks));
+		}
+	}
+
+	void runChunk(int pass, int chunk) {
+		int from = chunk * CHUNK_SIZE;
+		int to = Math.min(pass == LINK ? numVertices : aliveCount, from + CHUNK_SIZE);
+		switch (pass) {
+		case FIND_CHEAPEST:
+			for (int i = from; i < to; i++) {
+				int e = alive == null ? i : alive[i];
+				int root1 = components.find(edges.getFirst(e));
+				int root2 = components.find(edges.getSecond(e));
+				if (root1 != root2) {
+					offer(root1, e);
+					offer(root2, e);
+				}
+			}
+			break;
+		case LINK:
+			for (int v = from; v < to; v++) {
+				int e = cheapest.get(v);
+				if (e >= 0) {
+					link(v, e);
+				}
+			}
+			break;
+		case COUNT_ALIVE:
+			int count = 0;
+			for (int i = from; i < to; i++) {
+				if (isAlive(alive == null ? i : alive[i])) {
+					count++;
+				}
+			}
+			aliveChunkCounts[chunk] = count;
+			break;
+		case COPY_ALIVE:
+			int next = aliveChunkCounts[chunk];
+			for (int i = from; i < to; i++) {
+				int e = alive == null ? i : alive[i];
+				if (isAlive(e)) {
+					nextAlive[next++] = e;
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown pass: " + pass);
+		}
+	}
+
+	/**
+	 * Records an edge as the cheapest leaving a component if it is lighter
+	 * than the one recorded, retrying when another thread got there first.
+	 */
+	private void offer(int root, int e) {
+		while (true) {
+			int current = cheapest.get(root);
+			if (current >= 0 && !isLighter(e, current)) {
+				return;
+			}
+			if (cheapest.compareAndSet(root, current, e)) {
+				return;
+			}
+		}
+	}
+
+	private boolean isLighter(int e, int other) {
+		double w = edges.getWeight(e);
+		double otherWeight = edges.getWeight(other);
+		return w < otherWeight || w == otherWeight && e < other;
+	}
+
+	private boolean isAlive(int e) {
+		return components.find(edges.getFirst(e)) != components.find(edges.getSecond(e));
+	}
+
+	/**
+	 * Replaces the alive edges with those that still join two components,
+	 * counting them per chunk first so each chunk knows where to write.
+	 */
+	private void compact() {
+		int chunks = chunkCount(aliveCount);
+		aliveChunkCounts = new int[chunks];
+		runPass(COUNT_ALIVE, chunks);
+		int total = 0;
+		for (int chunk = 0; chunk < chunks; chunk++) {
+			int count = aliveChunkCounts[chunk];
+			aliveChunkCounts[chunk] = total;
+			total += count;
+		}
+		nextAlive = new int[total];
+		runPass(COPY_ALIVE, chunks);
+		alive = nextAlive;
+		nextAlive = null;
+		aliveChunkCounts = null;
+		aliveCount = total;
+	}
+
+	/**
+	 * Returns the edges of the forest, in input order.
+	 */
+	@Override
+	public EdgeList edges() {
+		return forest;
+	}
+
+	@Override
+	public double weight() {
+		return weight;
+	}
+
+	/**
+	 * Returns the number of trees in the forest, which is 1 when the graph is
+	 * connected.
+	 */
+	@Override
+	public int getComponentCount() {
+		return componentCount;
+	}
+
+	/**
+	 * Returns the tree of the forest a vertex belongs to, as the smallest
+	 * vertex label in that tree.
+	 */
+	@Override
+	public int getComponent(int v) {
+		return components.find(v);
+	}
+
+	@SuppressWarnings("serial")
+	private static class ChunkTask extends RecursiveAction {
+		private final ParallelBoruvkaMST mst;
+		private final int pass;
+		private final int from;
+		private final int to;
+
+		ChunkTask(ParallelBoruvkaMST mst, int pass, int from, int to) {
+			this.mst = mst;
+			this.pass = pass;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				mst.runChunk(pass, from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new ChunkTask(mst, pass, from, mid), new ChunkTask(mst, pass, mid, to));
+		}
+	}
+}
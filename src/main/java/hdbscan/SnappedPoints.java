@@ -0,0 +1,337 @@
+package main.java.hdbscan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import com.vividsolutions.jts.geom.Coordinate;
+
+/**
+ * <p>The distinct locations of a set of points after snapping them to a grid,
+ * with the number of input points at each location. The input points are not
+ * modified.</p>
+ *
+ * <p>Each point is mapped to the integer cell <code>round(x / tolerance),
+ * round(y / tolerance)</code>. When the cells span less than 2<sup>32</sup> in
+ * both directions, as they do for lon/lat down to a tolerance of about
+ * 10<sup>-7</sup> degrees, the two cell offsets are packed into one
+ * <code>long</code> key; otherwise, and for a NaN tolerance where points are
+ * compared exactly, the key is a pair of <code>long</code>s. Keys are spread
+ * over 64 partitions by hash and each partition is deduplicated with its own
+ * open-addressing table, so partitions run in parallel without locking and
+ * without comparing {@link Coordinate} objects.</p>
+ *
+ * <p>Locations are ordered by partition and then by their first occurrence
+ * in the input, so the result does not depend on the number of threads.</p>
+ */
+final class SnappedPoints {
+
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	private static final int PARTITION_BITS = 6;
+	private static final long UNIT = 1L << 32;
+
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] counts;
+
+	private SnappedPoints(double[] xs, double[] ys, int[] counts) {
+		this.xs = xs;
+		this.ys = ys;
+		this.counts = counts;
+	}
+
+	/**
+	 * Snaps the points to a grid and merges points in the same cell.
+	 *
+	 * @param points the points to snap
+	 * @param tolerance the grid spacing, or NaN to merge only identical points
+	 * @return the distinct snapped locations and their multiplicities
+	 */
+	static SnappedPoints snap(Coordinate[] points, double tolerance) {
+		if (points.length < 2 * PARALLEL_THRESHOLD) {
+			return new Snapper(points, tolerance, null).run();
+		}
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			return new Snapper(points, tolerance, pool).run();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the snapped value of a coordinate, as in earlier versions of
+	 * the trees.
+	 */
+	static double snap(double value, double tolerance) {
+		if (Double.isNaN(tolerance)) {
+			return value;
+		}
+		return Math.round(value / tolerance) / (1 / tolerance);
+	}
+
+	int size() {
+		return counts.length;
+	}
+
+	double getX(int i) {
+		return xs[i];
+	}
+
+	double getY(int i) {
+		return ys[i];
+	}
+
+	/**
+	 * Returns the number of input points snapped to a location.
+	 */
+	int getCount(int i) {
+		return counts[i];
+	}
+
+	int[] getCounts() {
+		return counts;
+	}
+
+	Coordinate[] toCoordinates() {
+		Coordinate[] coordinates = new Coordinate[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			coordinates[i] = new Coordinate(xs[i], ys[i]);
+		}
+		return coordinates;
+	}
+
+	/**
+	 * Finalization step of MurmurHash3, which spreads the bits of a key so
+	 * that both the partition and the table slot can be taken from it.
+	 */
+	private static long mix(long key, long key2) {
+		long h = key ^ (key2 * 0x9E3779B97F4A7C15L);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * The state of one snap-and-dedupe run.
+	 */
+	private static class Snapper {
+		private final Coordinate[] points;
+		private final double tolerance;
+		private final ForkJoinPool pool;
+		private final long[] keys;
+		private long[] keys2;
+		private final int[] order;
+		private final int[] partitionStart;
+		private final int[] partitionUnique;
+		private final int[] firstPoint;
+		private final int[] multiplicity;
+
+		Snapper(Coordinate[] points, double tolerance, ForkJoinPool pool) {
+			int n = points.length;
+			this.points = points;
+			this.tolerance = tolerance;
+			this.pool = pool;
+			this.keys = new long[n];
+			this.keys2 = new long[n];
+			this.order = new int[n];
+			this.partitionStart = new int[(1 << PARTITION_BITS) + 1];
+			this.partitionUnique = new int[1 << PARTITION_BITS];
+			this.firstPoint = new int[n];
+			this.multiplicity = new int[n];
+		}
+
+		SnappedPoints run() {
+			int n = points.length;
+			if (pool == null) {
+				computeKeys(0, n);
+			} else {
+				pool.invoke(new KeyTask(this, 0, n));
+			}
+			packKeys();
+			partition();
+			if (pool == null) {
+				for (int p = 0; p < partitionUnique.length; p++) {
+					dedupe(p);
+				}
+			} else {
+				pool.invoke(new DedupeTask(this, 0, 1 << PARTITION_BITS));
+			}
+
+			int unique = 0;
+			for (int p = 0; p < partitionUnique.length; p++) {
+				unique += partitionUnique[p];
+			}
+			double[] xs = new double[unique];
+			double[] ys = new double[unique];
+			int[] counts = new int[unique];
+			int next = 0;
+			for (int p = 0; p < partitionUnique.length; p++) {
+				for (int u = partitionStart[p]; u < partitionStart[p] + partitionUnique[p]; u++) {
+					Coordinate point = points[firstPoint[u]];
+					xs[next] = snap(point.x, tolerance);
+					ys[next] = snap(point.y, tolerance);
+					counts[next] = multiplicity[u];
+					next++;
+				}
+			}
+			return new SnappedPoints(xs, ys, counts);
+		}
+
+		/**
+		 * Computes the grid cell of each point in <code>[from, to)</code>, or
+		 * the bits of its coordinates when there is no tolerance.
+		 */
+		void computeKeys(int from, int to) {
+			boolean exact = Double.isNaN(tolerance);
+			for (int i = from; i < to; i++) {
+				Coordinate point = points[i];
+				if (exact) {
+					// + 0.0 turns -0.0 into 0.0, which compares equal to it
+					keys[i] = Double.doubleToLongBits(point.x + 0.0);
+					keys2[i] = Double.doubleToLongBits(point.y + 0.0);
+				} else {
+					keys[i] = Math.round(point.x / tolerance);
+					keys2[i] = Math.round(point.y / tolerance);
+				}
+			}
+		}
+
+		/**
+		 * Packs both cell indices into one key when their ranges allow it.
+		 */
+		private void packKeys() {
+			int n = points.length;
+			if (Double.isNaN(tolerance) || n == 0) {
+				return;
+			}
+			long minX = Long.MAX_VALUE;
+			long maxX = Long.MIN_VALUE;
+			long minY = Long.MAX_VALUE;
+			long maxY = Long.MIN_VALUE;
+			for (int i = 0; i < n; i++) {
+				minX = Math.min(minX, keys[i]);
+				maxX = Math.max(maxX, keys[i]);
+				minY = Math.min(minY, keys2[i]);
+				maxY = Math.max(maxY, keys2[i]);
+			}
+			// The differences are only meaningful if they did not overflow
+			if (maxX - minX < 0 || maxX - minX >= UNIT || maxY - minY < 0 || maxY - minY >= UNIT) {
+				return;
+			}
+			for (int i = 0; i < n; i++) {
+				keys[i] = (keys[i] - minX) << 32 | (keys2[i] - minY);
+			}
+			keys2 = null;
+		}
+
+		private long key2(int i) {
+			return keys2 == null ? 0 : keys2[i];
+		}
+
+		/**
+		 * Orders the points by partition, keeping input order within each
+		 * partition.
+		 */
+		private void partition() {
+			int n = points.length;
+			int shift = 64 - PARTITION_BITS;
+			for (int i = 0; i < n; i++) {
+				partitionStart[(int) (mix(keys[i], key2(i)) >>> shift) + 1]++;
+			}
+			for (int p = 1; p < partitionStart.length; p++) {
+				partitionStart[p] += partitionStart[p - 1];
+			}
+			int[] next = partitionStart.clone();
+			for (int i = 0; i < n; i++) {
+				order[next[(int) (mix(keys[i], key2(i)) >>> shift)]++] = i;
+			}
+		}
+
+		/**
+		 * Merges the points of one partition, writing its distinct locations
+		 * to the front of the partition's range in <code>firstPoint</code> and
+		 * <code>multiplicity</code>.
+		 */
+		void dedupe(int partition) {
+			int from = partitionStart[partition];
+			int to = partitionStart[partition + 1];
+			int capacity = Integer.highestOneBit(Math.max(1, 2 * (to - from))) << 1;
+			int[] slots = new int[capacity];
+			int mask = capacity - 1;
+			int unique = 0;
+
+			for (int i = from; i < to; i++) {
+				int point = order[i];
+				long key = keys[point];
+				long key2 = key2(point);
+				int slot = (int) mix(key, key2) & mask;
+				while (true) {
+					int u = slots[slot] - 1;
+					if (u < 0) {
+						slots[slot] = unique + 1;
+						firstPoint[from + unique] = point;
+						multiplicity[from + unique] = 1;
+						unique++;
+						break;
+					}
+					int other = firstPoint[from + u];
+					if (keys[other] == key && key2(other) == key2) {
+						multiplicity[from + u]++;
+						break;
+					}
+					slot = (slot + 1) & mask;
+				}
+			}
+			partitionUnique[partition] = unique;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class KeyTask extends RecursiveAction {
+		private final Snapper snapper;
+		private final int from;
+		private final int to;
+
+		KeyTask(Snapper snapper, int from, int to) {
+			this.snapper = snapper;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				snapper.computeKeys(from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new KeyTask(snapper, from, mid), new KeyTask(snapper, mid, to));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	private static class DedupeTask extends RecursiveAction {
+		private final Snapper snapper;
+		private final int from;
+		private final int to;
+
+		DedupeTask(Snapper snapper, int from, int to) {
+			this.snapper = snapper;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				snapper.dedupe(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new DedupeTask(snapper, from, mid), new DedupeTask(snapper, mid, to));
+		}
+	}
+}
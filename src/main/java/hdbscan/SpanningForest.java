@@ -0,0 +1,33 @@
+package main.java.hdbscan;
+
+/**
+ * A minimum spanning forest of an {@link EdgeList}, whichever engine found
+ * it, so that {@link ParallelBoruvkaMST} and {@link KruskalMST} can be
+ * swapped for each other and compared. {@link MutualReachabilityMST} and
+ * {@link DualTreeBoruvkaMST} find the forest of the complete mutual
+ * reachability graph of a tree instead of an edge list.
+ */
+public interface SpanningForest {
+
+	/**
+	 * Returns the edges of the forest.
+	 */
+	EdgeList edges();
+
+	/**
+	 * Returns the total weight of the edges of the forest.
+	 */
+	double weight();
+
+	/**
+	 * Returns the number of trees in the forest, which is 1 when the graph is
+	 * connected.
+	 */
+	int getComponentCount();
+
+	/**
+	 * Returns the tree of the forest a vertex belongs to, as the smallest
+	 * vertex label in that tree.
+	 */
+	int getComponent(int v);
+}
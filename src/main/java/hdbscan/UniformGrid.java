@@ -0,0 +1,305 @@
+package main.java.hdbscan;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * <p>A uniform grid over 2D points that finds k nearest neighbors by
+ * scanning rings of cells around each point. For data of fairly even
+ * density, such as the points of one city, it does less work per query than
+ * a kd-tree: there is no descent, and each cell's points are stored
+ * contiguously and scanned in one loop.</p>
+ *
+ * <p>Cells are sized from the expected core distance, the radius that would
+ * hold k points if the points were spread evenly over their bounding box, so
+ * a query usually finishes after the ring around its own cell. Longitude
+ * cells are widened by <code>1 / cos(lat)</code> at the middle latitude so
+ * cells are roughly square on the ground. A search stops when its heap is
+ * full and the metric's bound to the nearest edge of the scanned block of
+ * cells is no less than the k-th distance, so results are exact for any
+ * {@link DistanceMetric}.</p>
+ *
+ * <p>When density is very uneven a few crowded cells would dominate the
+ * cost, so {@link #create} declines to build a grid and callers fall back
+ * to the tree. The test is the average number of points in the cell of a
+ * point, which is about one more than the mean cell load for evenly spread
+ * data.</p>
+ */
+public final class UniformGrid {
+
+	private static final int PARALLEL_THRESHOLD = 1024;
+
+	/**
+	 * The largest ratio of the average cell load seen by a point to the one
+	 * expected for evenly spread points at which a grid is still used.
+	 */
+	public static final double MAX_LOAD_RATIO = 8;
+
+	private final DistanceMetric metric;
+	private final double minX;
+	private final double minY;
+	private final double cellWidth;
+	private final double cellHeight;
+	private final int columns;
+	private final int rows;
+	private final int[] cellStart;
+	private final double[] xs;
+	private final double[] ys;
+	private final int[] labels;
+	private final HaversineKernel kernel;
+	private final int maxCellSize;
+
+	private UniformGrid(DistanceMetric metric, double minX, double minY, double cellWidth, double cellHeight,
+			int columns, int rows, int[] cellStart, double[] xs, double[] ys, int[] labels, int maxCellSize) {
+		this.metric = metric;
+		this.minX = minX;
+		this.minY = minY;
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.columns = columns;
+		this.rows = rows;
+		this.cellStart = cellStart;
+		this.xs = xs;
+		this.ys = ys;
+		this.labels = labels;
+		this.maxCellSize = maxCellSize;
+		if (metric == DistanceMetric.HAVERSINE) {
+			this.kernel = new HaversineKernel(labels.length);
+			for (int i = 0; i < labels.length; i++) {
+				kernel.set(i, xs[i], ys[i]);
+			}
+		} else {
+			this.kernel = null;
+		}
+	}
+
+	/**
+	 * Builds a grid over points given as interleaved x, y coordinates, the
+	 * point at index i being labelled i.
+	 *
+	 * @param coords interleaved coordinates, two per point
+	 * @param k the number of neighbors searches will look for
+	 * @param metric the distance between points
+	 * @return the grid, or null if the density of the points is too uneven
+	 *         for a grid to pay off
+	 */
+	public static UniformGrid create(double[] coords, int k, DistanceMetric metric) {
+		int n = coords.length / 2;
+		if (n == 0) {
+			return null;
+		}
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			minX = Math.min(minX, coords[2 * i]);
+			maxX = Math.max(maxX, coords[2 * i]);
+			minY = Math.min(minY, coords[2 * i + 1]);
+			maxY = Math.max(maxY, coords[2 * i + 1]);
+		}
+
+		// Ground scale of x relative to y, so cells are about square
+		double aspect = 1;
+		if (metric == DistanceMetric.HAVERSINE) {
+			aspect = Math.max(0.01, Math.cos(Math.toRadians((minY + maxY) / 2)));
+		}
+		double width = Math.max(maxX - minX, Double.MIN_NORMAL) * aspect;
+		double height = Math.max(maxY - minY, Double.MIN_NORMAL);
+		double side = Math.sqrt(k * width * height / (Math.PI * n));
+		// Never more cells than points, even for collinear data
+		side = Math.max(side, Math.max(width, height) / n);
+		int columns = (int) Math.min(n, Math.max(1, Math.ceil(width / side)));
+		int rows = (int) Math.min(n, Math.max(1, Math.ceil(height / side)));
+		while ((long) columns * rows > 2L * n) {
+			side *= 2;
+			columns = (int) Math.max(1, Math.ceil(width / side));
+			rows = (int) Math.max(1, Math.ceil(height / side));
+		}
+		double cellWidth = width / aspect / columns;
+		double cellHeight = height / rows;
+
+		int[] cellOf = new int[n];
+		int[] cellStart = new int[columns * rows + 1];
+		for (int i = 0; i < n; i++) {
+			int column = Math.min(columns - 1, (int) ((coords[2 * i] - minX) / cellWidth));
+			int row = Math.min(rows - 1, (int) ((coords[2 * i + 1] - minY) / cellHeight));
+			cellOf[i] = row * columns + column;
+			cellStart[cellOf[i] + 1]++;
+		}
+
+		long sumOfSquares = 0;
+		int maxCellSize = 0;
+		for (int c = 1; c < cellStart.length; c++) {
+			sumOfSquares += (long) cellStart[c] * cellStart[c];
+			maxCellSize = Math.max(maxCellSize, cellStart[c]);
+		}
+		double load = sumOfSquares / (double) n;
+		double expectedLoad = n / (double) (columns * rows) + 1;
+		if (load > MAX_LOAD_RATIO * expectedLoad) {
+			return null;
+		}
+
+		for (int c = 1; c < cellStart.length; c++) {
+			cellStart[c] += cellStart[c - 1];
+		}
+		int[] next = cellStart.clone();
+		double[] xs = new double[n];
+		double[] ys = new double[n];
+		int[] labels = new int[n];
+		for (int i = 0; i < n; i++) {
+			int position = next[cellOf[i]]++;
+			xs[position] = coords[2 * i];
+			ys[position] = coords[2 * i + 1];
+			labels[position] = i;
+		}
+		return new UniformGrid(metric, minX, minY, cellWidth, cellHeight, columns, rows, cellStart,
+				xs, ys, labels, maxCellSize);
+	}
+
+	/**
+	 * Finds the k nearest neighbors of every point and stores them in the
+	 * node with the point's label, as {@link NearestKdTree#findKNN()} does.
+	 * Points are searched cell by cell.
+	 *
+	 * @param nodes the node of each label
+	 * @param pruneFactor 1 for an exact search, or (1 + epsilon) to accept
+	 *          core distances up to that factor too large
+	 * @param maxEpsilon the radius beyond which cells are not scanned, see
+	 *          {@link NearestKdTree#setMaxEpsilon(double)}
+	 * @param pool the pool to search on, or null to search on the calling
+	 *          thread
+	 */
+	public void findKNN(KdNode[] nodes, double pruneFactor, double maxEpsilon, ForkJoinPool pool) {
+		if (pool == null) {
+			findKNN(nodes, pruneFactor, maxEpsilon, 0, labels.length);
+		} else {
+			pool.invoke(new FindKNNTask(this, nodes, pruneFactor, maxEpsilon, 0, labels.length));
+		}
+	}
+
+	private void findKNN(KdNode[] nodes, double pruneFactor, double maxEpsilon, int from, int to) {
+		double[] scratch = new double[maxCellSize];
+		for (int i = from; i < to; i++) {
+			KdNode node = nodes[labels[i]];
+			search(i, node.getNeighbors(), pruneFactor, maxEpsilon, scratch);
+			node.updateCoreDistance(node.getNeighbors(), maxEpsilon);
+		}
+	}
+
+	/**
+	 * Scans rings of cells around the point at a grid position until no
+	 * unscanned cell can hold a point closer than the k-th neighbor found, or
+	 * than <code>maxEpsilon</code>.
+	 */
+	private void search(int query, NeighborHeap heap, double pruneFactor, double maxEpsilon, double[] scratch) {
+		double qx = xs[query];
+		double qy = ys[query];
+		int column = Math.min(columns - 1, (int) ((qx - minX) / cellWidth));
+		int row = Math.min(rows - 1, (int) ((qy - minY) / cellHeight));
+		// Allow for rounding when points were assigned to cells
+		double slackX = 1e-9 * cellWidth;
+		double slackY = 1e-9 * cellHeight;
+
+		for (int ring = 0; ; ring++) {
+			int c0 = column - ring;
+			int c1 = column + ring;
+			int r0 = row - ring;
+			int r1 = row + ring;
+			for (int r = Math.max(0, r0); r <= Math.min(rows - 1, r1); r++) {
+				boolean edgeRow = r == r0 || r == r1;
+				int step = edgeRow ? 1 : c1 - c0;
+				for (int c = c0; c <= c1; c += Math.max(1, step)) {
+					if (c >= 0 && c < columns) {
+						scanCell(r * columns + c, query, heap, scratch);
+					}
+				}
+			}
+
+			double bound = Double.POSITIVE_INFINITY;
+			if (c0 > 0) {
+				bound = Math.min(bound, metric.splitLowerBound(qx, qy, 0, minX + c0 * cellWidth + slackX));
+			}
+			if (c1 < columns - 1) {
+				bound = Math.min(bound, metric.splitLowerBound(qx, qy, 0, minX + (c1 + 1) * cellWidth - slackX));
+			}
+			if (r0 > 0) {
+				bound = Math.min(bound, metric.splitLowerBound(qx, qy, 1, minY + r0 * cellHeight + slackY));
+			}
+			if (r1 < rows - 1) {
+				bound = Math.min(bound, metric.splitLowerBound(qx, qy, 1, minY + (r1 + 1) * cellHeight - slackY));
+			}
+			if (bound == Double.POSITIVE_INFINITY || bound > maxEpsilon) {
+				return;
+			}
+			if (heap.isFull() && pruneFactor * bound >= heap.maxDistance()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Offers every point of a cell other than the query to the heap.
+	 */
+	private void scanCell(int cell, int query, NeighborHeap heap, double[] scratch) {
+		int from = cellStart[cell];
+		int to = cellStart[cell + 1];
+		if (kernel != null) {
+			kernel.offer(query, from, to, labels, heap, scratch);
+			return;
+		}
+		double qx = xs[query];
+		double qy = ys[query];
+		for (int i = from; i < to; i++) {
+			scratch[i - from] = metric.distance(qx, qy, xs[i], ys[i]);
+		}
+		for (int i = from; i < to; i++) {
+			if (i != query) {
+				heap.offerNew(labels[i], scratch[i - from]);
+			}
+		}
+	}
+
+	public int getColumns() {
+		return columns;
+	}
+
+	public int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Splits a range of grid positions in half until it is small enough to
+	 * search sequentially. Neighboring positions are in the same or nearby
+	 * cells, so each thread works on one region of the data.
+	 */
+	@SuppressWarnings("serial")
+	private static class FindKNNTask extends RecursiveAction {
+		private final UniformGrid grid;
+		private final KdNode[] nodes;
+		private final double pruneFactor;
+		private final double maxEpsilon;
+		private final int from;
+		private final int to;
+
+		FindKNNTask(UniformGrid grid, KdNode[] nodes, double pruneFactor, double maxEpsilon, int from, int to) {
+			this.grid = grid;
+			this.nodes = nodes;
+			this.pruneFactor = pruneFactor;
+			this.maxEpsilon = maxEpsilon;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= PARALLEL_THRESHOLD) {
+				grid.findKNN(nodes, pruneFactor, maxEpsilon, from, to);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new FindKNNTask(grid, nodes, pruneFactor, maxEpsilon, from, mid),
+					new FindKNNTask(grid, nodes, pruneFactor, maxEpsilon, mid, to));
+		}
+	}
+}